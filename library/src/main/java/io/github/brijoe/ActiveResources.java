@@ -0,0 +1,201 @@
+package io.github.brijoe;
+
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * 正在显示的 Bitmap，按内存缓存key 记录显示它的 ImageView
+ * <p/>
+ * 显示中的 Bitmap 从内存缓存中移出，不占用内存缓存的容量，也不会被淘汰进入 Bitmap 池；
+ * 相邻的 ImageView 请求同一张图时直接共享，不会重复解码。
+ * 所有 ImageView 都改为显示其他图片（或被回收）、并且没有待投递的结果后，才通过
+ * {@link ResourceListener} 放回内存缓存
+ */
+final class ActiveResources {
+
+    /**
+     * Bitmap 不再显示时的回调
+     */
+    interface ResourceListener {
+        /**
+         * 在锁外回调
+         *
+         * @param diskKey
+         * @param key     内存缓存key
+         * @param bitmap
+         */
+        void onResourceReleased(String diskKey, String key, Bitmap bitmap);
+    }
+
+    private static final class Entry {
+        final String diskKey;
+        final String key;
+        final Bitmap bitmap;
+        /**
+         * 显示该 Bitmap 的 ImageView，弱引用，被回收的 ImageView 自动移除
+         */
+        final Map<ImageView, Boolean> views = new WeakHashMap<ImageView, Boolean>();
+        /**
+         * 已经投递但还没有设置到 ImageView 上的结果数
+         */
+        int pending;
+
+        Entry(String diskKey, String key, Bitmap bitmap) {
+            this.diskKey = diskKey;
+            this.key = key;
+            this.bitmap = bitmap;
+        }
+
+        boolean isReleased() {
+            return pending == 0 && views.isEmpty();
+        }
+    }
+
+    private final ResourceListener mListener;
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    /**
+     * ImageView -> 当前显示的条目
+     */
+    private final Map<ImageView, Entry> mBindings = new WeakHashMap<ImageView, Entry>();
+
+    ActiveResources(ResourceListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param key 内存缓存key
+     * @return 正在显示的 Bitmap
+     */
+    synchronized Bitmap get(String key) {
+        Entry entry = mEntries.get(key);
+        return entry != null ? entry.bitmap : null;
+    }
+
+    /**
+     * 正在显示时增加一个引用，之后必须调用 {@link #bind} 或 {@link #cancelPending}
+     *
+     * @param key 内存缓存key
+     * @return 正在显示的 Bitmap，没有时返回null
+     */
+    synchronized Bitmap acquire(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.pending++;
+        return entry.bitmap;
+    }
+
+    /**
+     * @param diskKey
+     * @return 同一个uri 正在显示的所有 Bitmap，key 为内存缓存key
+     */
+    synchronized Map<String, Bitmap> getVariants(String diskKey) {
+        Map<String, Bitmap> variants = new HashMap<String, Bitmap>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.diskKey.equals(diskKey)) {
+                variants.put(entry.key, entry.bitmap);
+            }
+        }
+        return variants;
+    }
+
+    /**
+     * 登记一个即将设置到 ImageView 上的 Bitmap，之后必须调用 {@link #bind} 或 {@link #cancelPending}
+     *
+     * @param key
+     * @param diskKey
+     * @param bitmap
+     * @return 实际登记的 Bitmap，key 已经在显示时为已有的 Bitmap
+     */
+    synchronized Bitmap activate(String key, String diskKey, Bitmap bitmap) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(diskKey, key, bitmap);
+            mEntries.put(key, entry);
+        }
+        entry.pending++;
+        return entry.bitmap;
+    }
+
+    /**
+     * 已登记的 Bitmap 设置到了 imageView 上，imageView 之前显示的 Bitmap 减少一个引用
+     * <p/>
+     * NOTE THAT:should run in UI Thread
+     *
+     * @param imageView
+     * @param key
+     */
+    void bind(ImageView imageView, String key) {
+        List<Entry> released = new ArrayList<Entry>();
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                return;
+            }
+            entry.pending--;
+            Entry previous = mBindings.put(imageView, entry);
+            if (previous != null && previous != entry) {
+                previous.views.remove(imageView);
+            }
+            entry.views.put(imageView, Boolean.TRUE);
+            //顺便清理 ImageView 已被回收的条目
+            collectReleased(released);
+        }
+        dispatchReleased(released);
+    }
+
+    /**
+     * 已登记的 Bitmap 最终没有设置到 ImageView 上
+     *
+     * @param key
+     */
+    void cancelPending(String key) {
+        List<Entry> released = new ArrayList<Entry>();
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                return;
+            }
+            entry.pending--;
+            collectReleased(released);
+        }
+        dispatchReleased(released);
+    }
+
+    /**
+     * @param bitmap
+     * @return bitmap 是否正在显示或等待显示
+     */
+    synchronized boolean isActive(Bitmap bitmap) {
+        for (Entry entry : mEntries.values()) {
+            if (entry.bitmap == bitmap) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void collectReleased(List<Entry> released) {
+        for (Iterator<Entry> i = mEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.isReleased()) {
+                i.remove();
+                released.add(entry);
+            }
+        }
+    }
+
+    private void dispatchReleased(List<Entry> released) {
+        for (Entry entry : released) {
+            mListener.onResourceReleased(entry.diskKey, entry.key, entry.bitmap);
+        }
+    }
+}
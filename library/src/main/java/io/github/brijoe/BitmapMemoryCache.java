@@ -0,0 +1,338 @@
+package io.github.brijoe;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bitmap 内存缓存，key 由 (uri, 目标尺寸, 解码配置) 组成，同一个uri 可以同时缓存多个尺寸的变体
+ * <p/>
+ * 除了精确匹配，还可以从已缓存或正在显示的较大变体缩放得到较小尺寸的Bitmap，避免重新读取磁盘解码。
+ * 同一个 Bitmap 只以一个key 缓存或显示，否则淘汰其中一个key 时会被放入 Bitmap 池，被复用覆盖后
+ * 另一个key 仍在使用
+ * <p/>
+ * 淘汰策略为 {@link TinyLfuCache}，快速滑动时只出现一次的图片不会挤掉经常访问的图片
+ */
+final class BitmapMemoryCache {
+
+    /**
+     * 内存缓存key 各部分之间的分隔符，磁盘缓存key 为十六进制字符串，不会包含该字符
+     */
+    private static final char KEY_SEPARATOR = '_';
+    private static final String PREVIEW_SUFFIX = "preview";
+
+    private final TinyLfuCache<String, Bitmap> mLruCache;
+    /**
+     * 被淘汰的 Bitmap 放入该池中复用
+     */
+    private final BitmapPool mBitmapPool;
+    /**
+     * 正在显示的 Bitmap，也作为可缩放的变体
+     */
+    private final ActiveResources mActiveResources;
+    /**
+     * 磁盘缓存key -> 已缓存的内存缓存key，用于查找同一个uri 的其他尺寸变体
+     */
+    private final Map<String, List<String>> mVariants = new HashMap<String, List<String>>();
+
+    /**
+     * 较大变体查找的结果
+     */
+    static final class Variant {
+        /**
+         * bitmap 的内存缓存key，登记为显示中、不再显示后放回内存缓存时都使用该key
+         */
+        final String key;
+        final Bitmap bitmap;
+
+        Variant(String key, Bitmap bitmap) {
+            this.key = key;
+            this.bitmap = bitmap;
+        }
+    }
+
+    /**
+     * @param maxSize         缓存大小，单位KB
+     * @param bitmapPool
+     * @param activeResources
+     */
+    BitmapMemoryCache(int maxSize, BitmapPool bitmapPool, ActiveResources activeResources) {
+        mBitmapPool = bitmapPool;
+        mActiveResources = activeResources;
+        mLruCache = new TinyLfuCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight() / 1024;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (newValue == null) {
+                    removeVariant(key);
+                }
+                if (evicted) {
+                    mBitmapPool.put(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * 生成内存缓存key
+     *
+     * @param diskKey   磁盘缓存key
+     * @param reqWidth
+     * @param reqHeight
+     * @param config    解码配置
+     * @return
+     */
+    static String createKey(String diskKey, int reqWidth, int reqHeight, Bitmap.Config config) {
+        return diskKey + KEY_SEPARATOR + reqWidth + "x" + reqHeight + KEY_SEPARATOR + config.name();
+    }
+
+    /**
+     * 生成渐进式加载预览图的内存缓存key，预览图不作为尺寸变体参与缩放查找
+     *
+     * @param key 完整图片的内存缓存key
+     * @return
+     */
+    static String createPreviewKey(String key) {
+        return key + KEY_SEPARATOR + PREVIEW_SUFFIX;
+    }
+
+    private static boolean isPreviewKey(String key) {
+        return key.endsWith(KEY_SEPARATOR + PREVIEW_SUFFIX);
+    }
+
+    /**
+     * 精确匹配
+     *
+     * @param key
+     * @return
+     */
+    Bitmap get(String key) {
+        return mLruCache.get(key);
+    }
+
+    /**
+     * 精确匹配，不记录访问，用于同一次请求的重复查找
+     *
+     * @param key
+     * @return
+     */
+    Bitmap peek(String key) {
+        return mLruCache.peek(key);
+    }
+
+    /**
+     * 精确匹配并登记为显示中，之后必须调用 {@link ActiveResources#bind} 或 {@link ActiveResources#cancelPending}
+     * <p/>
+     * 正在显示的直接增加引用；缓存中的先原子地移出缓存再登记，移出的 Bitmap 不会再被淘汰，
+     * 查找与登记之间不会被其他线程的 put 淘汰进入 Bitmap 池
+     *
+     * @param diskKey
+     * @param key
+     * @param recordAccess 是否记录访问，同一次请求的重复查找不记录
+     * @return 未命中时返回null
+     */
+    Bitmap acquire(String diskKey, String key, boolean recordAccess) {
+        Bitmap bitmap = mActiveResources.acquire(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        bitmap = recordAccess ? mLruCache.take(key) : mLruCache.remove(key);
+        if (bitmap == null) {
+            return null;
+        }
+        return mActiveResources.activate(key, diskKey, bitmap);
+    }
+
+    /**
+     * 移除 key 对应的 Bitmap，移除的 Bitmap 不会放入 Bitmap 池
+     *
+     * @param key
+     */
+    void remove(String key) {
+        mLruCache.remove(key);
+    }
+
+    /**
+     * 调整缓存大小，缩小时立即淘汰超出的 Bitmap
+     *
+     * @param maxSize 单位KB，为0 时清空
+     */
+    void resize(int maxSize) {
+        mLruCache.resize(Math.max(1, maxSize));
+        if (maxSize <= 0) {
+            mLruCache.evictAll();
+        }
+    }
+
+    /**
+     * @return 命中次数
+     */
+    int hitCount() {
+        return mLruCache.hitCount();
+    }
+
+    /**
+     * @return 未命中次数
+     */
+    int missCount() {
+        return mLruCache.missCount();
+    }
+
+    /**
+     * @return 因容量被淘汰的次数
+     */
+    int evictionCount() {
+        return mLruCache.evictionCount();
+    }
+
+    /**
+     * 将 指定的bitmap 加入 内存缓存中，已存在时不覆盖
+     *
+     * @param diskKey
+     * @param key
+     * @param bitmap
+     */
+    void put(String diskKey, String key, Bitmap bitmap) {
+        put(diskKey, key, bitmap, false);
+    }
+
+    /**
+     * 将预加载的 bitmap 加入内存缓存，跳过准入比较，已存在时不覆盖
+     *
+     * @param diskKey
+     * @param key
+     * @param bitmap
+     * @see TinyLfuCache#putAdmitted
+     */
+    void putPrefetched(String diskKey, String key, Bitmap bitmap) {
+        put(diskKey, key, bitmap, true);
+    }
+
+    private void put(String diskKey, String key, Bitmap bitmap, boolean prefetched) {
+        if (mLruCache.peek(key) != null) {
+            return;
+        }
+        if (prefetched) {
+            mLruCache.putAdmitted(key, bitmap);
+        } else {
+            mLruCache.put(key, bitmap);
+        }
+        if (isPreviewKey(key)) {
+            return;
+        }
+        synchronized (mVariants) {
+            List<String> keys = mVariants.get(diskKey);
+            if (keys == null) {
+                keys = new ArrayList<String>(2);
+                mVariants.put(diskKey, keys);
+            }
+            if (!keys.contains(key)) {
+                keys.add(key);
+            }
+        }
+    }
+
+    /**
+     * 从同一个uri 已缓存或正在显示的较大变体缩放得到目标尺寸的Bitmap，缩放结果不再显示后同样进入缓存
+     * <p/>
+     * NOTE THAT:缩放有一定开销，不要在UI 线程调用
+     *
+     * @param diskKey
+     * @param reqWidth  为0 时表示原图尺寸，只能精确匹配
+     * @param reqHeight 为0 时表示原图尺寸，只能精确匹配
+     * @param config
+     * @return 找不到可用变体时返回null；变体尺寸恰好相同时直接返回该变体和它原来的key，不以新key 重复缓存。
+     * 返回的 Bitmap 已以返回的key 登记为显示中，调用方用完后必须调用 {@link ActiveResources#cancelPending}
+     */
+    Variant getFromLargerVariant(String diskKey, int reqWidth, int reqHeight, Bitmap.Config config) {
+        if (reqWidth == 0 || reqHeight == 0) {
+            return null;
+        }
+        Map<String, Bitmap> candidates = mActiveResources.getVariants(diskKey);
+        List<String> cachedKeys = null;
+        synchronized (mVariants) {
+            List<String> keys = mVariants.get(diskKey);
+            if (keys != null) {
+                cachedKeys = new ArrayList<String>(keys);
+            }
+        }
+        if (cachedKeys != null) {
+            for (String key : cachedKeys) {
+                Bitmap candidate = mLruCache.peek(key);
+                if (candidate == null) {
+                    //加入索引前就已被淘汰的key
+                    removeVariant(key);
+                    continue;
+                }
+                candidates.put(key, candidate);
+            }
+        }
+        //找到能覆盖目标尺寸的最小变体
+        Bitmap best = null;
+        String bestKey = null;
+        for (Map.Entry<String, Bitmap> entry : candidates.entrySet()) {
+            Bitmap candidate = entry.getValue();
+            if (isPreviewKey(entry.getKey()) || candidate.getConfig() != config) {
+                continue;
+            }
+            if (candidate.getWidth() < reqWidth || candidate.getHeight() < reqHeight) {
+                continue;
+            }
+            if (best == null || candidate.getWidth() * candidate.getHeight() < best.getWidth() * best.getHeight()) {
+                best = candidate;
+                bestKey = entry.getKey();
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        //缩放之前先登记为显示中，否则挑选之后可能已被其他线程淘汰进入 Bitmap 池、像素被复用覆盖；
+        //缓存中的变体同时记录一次访问
+        Bitmap pinned = acquire(diskKey, bestKey, cachedKeys != null && cachedKeys.contains(bestKey));
+        if (pinned != best) {
+            if (pinned != null) {
+                mActiveResources.cancelPending(bestKey);
+            }
+            return null;
+        }
+        //与 inSampleSize 一致，缩放后宽高都不小于目标尺寸
+        float scale = Math.max((float) reqWidth / best.getWidth(), (float) reqHeight / best.getHeight());
+        int width = Math.max(reqWidth, Math.round(best.getWidth() * scale));
+        int height = Math.max(reqHeight, Math.round(best.getHeight() * scale));
+        if (width == best.getWidth() && height == best.getHeight()) {
+            //尺寸相同直接复用，以原来的key 显示，同一个Bitmap 不会以两个key 缓存
+            return new Variant(bestKey, best);
+        }
+        String key = createKey(diskKey, reqWidth, reqHeight, config);
+        Bitmap bitmap;
+        try {
+            bitmap = Bitmap.createScaledBitmap(best, width, height, true);
+        } finally {
+            //缓存中取出的变体在这里放回缓存
+            mActiveResources.cancelPending(bestKey);
+        }
+        //缩放结果同样先登记为显示中，不再显示时进入缓存
+        return new Variant(key, mActiveResources.activate(key, diskKey, bitmap));
+    }
+
+    private void removeVariant(String key) {
+        String diskKey = key.substring(0, key.indexOf(KEY_SEPARATOR));
+        synchronized (mVariants) {
+            List<String> keys = mVariants.get(diskKey);
+            if (keys == null) {
+                return;
+            }
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                mVariants.remove(diskKey);
+            }
+        }
+    }
+}
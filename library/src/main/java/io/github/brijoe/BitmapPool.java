@@ -0,0 +1,189 @@
+package io.github.brijoe;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * 可复用的 Bitmap 池，内存缓存淘汰的 Bitmap 放入池中，解码时通过
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} 复用其内存，减少分配和GC
+ * <p/>
+ * 池按 Bitmap 字节数分桶。KITKAT 之前 inBitmap 要求宽高和配置完全一致，之后只要求字节数足够
+ */
+final class BitmapPool {
+
+    /**
+     * KITKAT 之后允许复用的 Bitmap 最多是所需字节数的倍数，避免用很大的 Bitmap 解码很小的图
+     */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    /**
+     * 池的最大字节数
+     */
+    private int mMaxSize;
+    private int mSize = 0;
+
+    /**
+     * 字节数 -> 该大小的 Bitmap
+     */
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets = new TreeMap<Integer, LinkedList<Bitmap>>();
+    /**
+     * 放入顺序，池满时先淘汰最早放入的
+     */
+    private final LinkedList<Bitmap> mLruList = new LinkedList<Bitmap>();
+    /**
+     * 正在显示的 Bitmap，这些 Bitmap 即使被内存缓存淘汰也不能复用
+     */
+    private final ActiveResources mActiveResources;
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    /**
+     * @param maxSize         池的最大字节数
+     * @param activeResources
+     */
+    BitmapPool(int maxSize, ActiveResources activeResources) {
+        this.mMaxSize = maxSize;
+        this.mActiveResources = activeResources;
+    }
+
+    /**
+     * 放入一个不再使用的 Bitmap
+     *
+     * @param bitmap
+     * @return 是否放入池中
+     */
+    boolean put(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB
+                || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return false;
+        }
+        if (mActiveResources.isActive(bitmap)) {
+            return false;
+        }
+        int size = getBitmapSize(bitmap);
+        synchronized (this) {
+            if (size > mMaxSize || mLruList.contains(bitmap)) {
+                return false;
+            }
+            LinkedList<Bitmap> bucket = mBuckets.get(size);
+            if (bucket == null) {
+                bucket = new LinkedList<Bitmap>();
+                mBuckets.put(size, bucket);
+            }
+            bucket.addFirst(bitmap);
+            mLruList.addLast(bitmap);
+            mSize += size;
+            trimToSize(mMaxSize);
+        }
+        return true;
+    }
+
+    /**
+     * 取得一个可用于解码 width * height 图片的 Bitmap
+     *
+     * @param width  解码后的宽
+     * @param height 解码后的高
+     * @param config
+     * @return 没有可用的 Bitmap 时返回null
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int required = width * height * getBytesPerPixel(config);
+        Bitmap result = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Integer size = mBuckets.ceilingKey(required);
+            if (size != null && size <= required * MAX_SIZE_MULTIPLE) {
+                result = mBuckets.get(size).getFirst();
+            }
+        } else {
+            LinkedList<Bitmap> bucket = mBuckets.get(required);
+            if (bucket != null) {
+                for (Bitmap candidate : bucket) {
+                    if (candidate.getWidth() == width && candidate.getHeight() == height
+                            && candidate.getConfig() == config) {
+                        result = candidate;
+                        break;
+                    }
+                }
+            }
+        }
+        if (result == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        remove(result);
+        return result;
+    }
+
+    /**
+     * 调整池的最大字节数，缩小时立即丢弃最早放入的 Bitmap
+     *
+     * @param maxSize 为0 时清空
+     */
+    synchronized void resize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return 池中 Bitmap 的总字节数
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    private void trimToSize(int maxSize) {
+        while (mSize > maxSize && !mLruList.isEmpty()) {
+            remove(mLruList.getFirst());
+        }
+    }
+
+    private void remove(Bitmap bitmap) {
+        int size = getBitmapSize(bitmap);
+        LinkedList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket != null) {
+            for (Iterator<Bitmap> i = bucket.iterator(); i.hasNext(); ) {
+                if (i.next() == bitmap) {
+                    i.remove();
+                    break;
+                }
+            }
+            if (bucket.isEmpty()) {
+                mBuckets.remove(size);
+            }
+        }
+        mLruList.remove(bitmap);
+        mSize -= size;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    static int getBitmapSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
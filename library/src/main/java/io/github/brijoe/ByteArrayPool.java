@@ -0,0 +1,54 @@
+package io.github.brijoe;
+
+import java.util.ArrayDeque;
+
+/**
+ * 定长字节缓冲区池，下载时按块读写，缓冲区在多次下载之间复用，避免每次下载都分配新数组
+ */
+final class ByteArrayPool {
+
+    /**
+     * 每个缓冲区大小
+     */
+    private final int mBufferSize;
+    /**
+     * 池中最多保留的缓冲区个数
+     */
+    private final int mMaxCount;
+
+    private final ArrayDeque<byte[]> mBuffers = new ArrayDeque<byte[]>();
+
+    ByteArrayPool(int bufferSize, int maxCount) {
+        this.mBufferSize = bufferSize;
+        this.mMaxCount = maxCount;
+    }
+
+    /**
+     * 取得一个缓冲区，池为空时新分配
+     *
+     * @return
+     */
+    synchronized byte[] obtain() {
+        byte[] buffer = mBuffers.pollFirst();
+        return buffer != null ? buffer : new byte[mBufferSize];
+    }
+
+    /**
+     * 归还缓冲区，池已满或大小不符时直接丢弃
+     *
+     * @param buffer
+     */
+    synchronized void recycle(byte[] buffer) {
+        if (buffer == null || buffer.length != mBufferSize || mBuffers.size() >= mMaxCount) {
+            return;
+        }
+        mBuffers.offerFirst(buffer);
+    }
+
+    /**
+     * 丢弃池中所有缓冲区
+     */
+    synchronized void clear() {
+        mBuffers.clear();
+    }
+}
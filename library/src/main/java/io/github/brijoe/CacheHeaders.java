@@ -0,0 +1,272 @@
+package io.github.brijoe;
+
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * 响应的缓存信息，与图片数据一起保存在磁盘缓存条目中，决定条目是否可以不经网络直接使用
+ * <p/>
+ * 新鲜期依次取自 Cache-Control 的 max-age、Expires 与 Date 之差；都没有时按 Last-Modified
+ * 推算为距上次修改时间的 {@link #HEURISTIC_PERCENT}%，否则为 {@link #DEFAULT_FRESHNESS_MILLIS}，
+ * 既没有新鲜期也没有验证信息的响应与之前一样一直新鲜。过期的条目带上 ETag / Last-Modified
+ * 发送条件请求，服务器返回 304 时继续使用本地数据；304 响应没有新鲜期时按本地保存的验证信息推算，
+ * 不会因此变成一直新鲜。no-store 的响应不写入磁盘缓存，见 {@link #isNoStore}
+ * <p/>
+ * 存储格式为一行以空格分隔的文本：expiresAt etag lastModified，etag 和 lastModified 中的空格和 % 被转义
+ */
+final class CacheHeaders {
+
+    private static final String NONE = "-";
+    /**
+     * 一直新鲜
+     */
+    private static final long NEVER_EXPIRES = Long.MAX_VALUE;
+    /**
+     * 响应头没有给出过期时间
+     */
+    private static final long UNKNOWN = -1;
+    /**
+     * 有验证信息、但没有新鲜期也无法按 Last-Modified 推算时的新鲜期
+     */
+    private static final long DEFAULT_FRESHNESS_MILLIS = 24 * 60 * 60 * 1000L;
+    /**
+     * 按 Last-Modified 推算新鲜期时所取的比例
+     */
+    private static final int HEURISTIC_PERCENT = 10;
+
+    /**
+     * 过期时间，毫秒时间戳
+     */
+    final long expiresAt;
+    /**
+     * 可能为null
+     */
+    final String etag;
+    /**
+     * Last-Modified 原文，条件请求时原样发回，可能为null
+     */
+    final String lastModified;
+    /**
+     * 是否由 304 响应得到，不保存
+     */
+    final boolean notModified;
+
+    CacheHeaders(long expiresAt, String etag, String lastModified, boolean notModified) {
+        this.expiresAt = expiresAt;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.notModified = notModified;
+    }
+
+    /**
+     * @param now 毫秒时间戳
+     * @return 是否可以不经网络直接使用
+     */
+    boolean isFresh(long now) {
+        return now < expiresAt;
+    }
+
+    /**
+     * @return 是否可以发送条件请求
+     */
+    boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * 为请求加上条件请求头
+     *
+     * @param connection 还没有连接的请求
+     */
+    void addValidators(HttpURLConnection connection) {
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * @param other
+     * @return 两者的 ETag 和 Last-Modified 是否都相同，即是否对应同一份响应体
+     */
+    boolean sameValidators(CacheHeaders other) {
+        return equals(etag, other.etag) && equals(lastModified, other.lastModified);
+    }
+
+    /**
+     * @return 新鲜期相同、但不能用于条件请求的缓存信息
+     */
+    CacheHeaders withoutValidators() {
+        return new CacheHeaders(expiresAt, null, null, notModified);
+    }
+
+    /**
+     * 由 304 响应更新缓存信息：响应中没有的验证信息沿用本地的，
+     * 响应没有新鲜期时按合并后的验证信息推算
+     *
+     * @param connection   收到 304 响应的连接
+     * @param responseTime 收到响应的毫秒时间戳
+     * @return 新的缓存信息
+     */
+    CacheHeaders refresh(HttpURLConnection connection, long responseTime) {
+        String responseEtag = connection.getHeaderField("ETag");
+        String responseLastModified = connection.getHeaderField("Last-Modified");
+        String newEtag = responseEtag != null ? responseEtag : etag;
+        String newLastModified = responseLastModified != null ? responseLastModified : lastModified;
+        long newExpiresAt = explicitExpiresAt(connection, responseTime);
+        if (newExpiresAt == UNKNOWN) {
+            newExpiresAt = heuristicExpiresAt(connection, responseTime, newLastModified);
+        }
+        return new CacheHeaders(newExpiresAt, newEtag, newLastModified, true);
+    }
+
+    /**
+     * @param connection 收到响应的连接
+     * @return 响应是否不允许保存，这样的响应体直接解码，不写入磁盘缓存
+     */
+    static boolean isNoStore(HttpURLConnection connection) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl == null) {
+            return false;
+        }
+        for (String directive : cacheControl.split(",")) {
+            if (directive.trim().toLowerCase(Locale.US).equals("no-store")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param connection   收到 200 响应的连接
+     * @param responseTime 收到响应的毫秒时间戳
+     * @return 响应的缓存信息
+     */
+    static CacheHeaders fromResponse(HttpURLConnection connection, long responseTime) {
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        long expiresAt = explicitExpiresAt(connection, responseTime);
+        if (expiresAt == UNKNOWN) {
+            //没有验证信息时无法发送条件请求，与之前一样一直新鲜
+            expiresAt = etag == null && lastModified == null ? NEVER_EXPIRES
+                    : heuristicExpiresAt(connection, responseTime, lastModified);
+        }
+        return new CacheHeaders(expiresAt, etag, lastModified, false);
+    }
+
+    /**
+     * @param connection
+     * @param responseTime
+     * @return 响应头明确给出的过期时间，没有时返回 {@link #UNKNOWN}
+     */
+    private static long explicitExpiresAt(HttpURLConnection connection, long responseTime) {
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                //每次使用前都要验证
+                if (directive.equals("no-cache")) {
+                    return responseTime;
+                }
+            }
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return responseTime + Math.max(0, Long.parseLong(directive.substring(8).trim())) * 1000;
+                    } catch (NumberFormatException e) {
+                        //忽略格式不正确的 max-age
+                    }
+                }
+            }
+        }
+        //Expires 以服务器时间表示，换算成相对于 Date 的时长，不受本地时钟偏差影响
+        long date = connection.getHeaderFieldDate("Date", responseTime);
+        long expires = connection.getHeaderFieldDate("Expires", -1);
+        if (expires != -1) {
+            return responseTime + Math.max(0, expires - date);
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @param connection
+     * @param responseTime
+     * @param lastModified Last-Modified 原文，可能为null
+     * @return 按距上次修改时间推算的过期时间，无法推算时为默认新鲜期
+     */
+    private static long heuristicExpiresAt(HttpURLConnection connection, long responseTime, String lastModified) {
+        long date = connection.getHeaderFieldDate("Date", responseTime);
+        long modified = parseHttpDate(lastModified);
+        if (modified != -1 && modified < date) {
+            return responseTime + (date - modified) * HEURISTIC_PERCENT / 100;
+        }
+        return responseTime + DEFAULT_FRESHNESS_MILLIS;
+    }
+
+    /**
+     * @param value RFC 1123 格式的日期，可能为null
+     * @return 毫秒时间戳，无法解析时返回-1
+     */
+    private static long parseHttpDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    String encode() {
+        return expiresAt + " " + encodeValue(etag) + " " + encodeValue(lastModified);
+    }
+
+    /**
+     * @param value
+     * @return 格式不正确时返回null
+     */
+    static CacheHeaders parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.trim().split(" ");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            return new CacheHeaders(Long.parseLong(parts[0]), decodeValue(parts[1]), decodeValue(parts[2]), false);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 将空格和 % 转义，保证一个值只占一个字段
+     */
+    private static String encodeValue(String value) {
+        if (value == null || value.length() == 0) {
+            return NONE;
+        }
+        return value.replace("%", "%25").replace(" ", "%20");
+    }
+
+    private static String decodeValue(String value) {
+        if (NONE.equals(value)) {
+            return null;
+        }
+        return value.replace("%20", " ").replace("%25", "%");
+    }
+}
@@ -0,0 +1,126 @@
+package io.github.brijoe;
+
+import android.util.LruCache;
+
+/**
+ * 由uri 生成磁盘缓存key，结果按uri 记忆，列表反复绑定同一个uri 时不需要重新计算哈希
+ * <p/>
+ * 计算过程中的UTF-8 编码、哈希和十六进制转换都使用线程内复用的缓冲区，除了结果字符串不分配对象
+ */
+final class CacheKeyService {
+
+    /**
+     * 记忆的 uri -> key 最大条数
+     */
+    private static final int MEMO_SIZE = 512;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * 每个线程复用的缓冲区
+     */
+    private static final class Buffers {
+        byte[] input = new byte[256];
+        final byte[] hash = new byte[KeyHash.HASH_SIZE];
+        final char[] hex = new char[KeyHash.HASH_SIZE * 2];
+    }
+
+    private final ThreadLocal<Buffers> mBuffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private final LruCache<String, String> mMemo = new LruCache<String, String>(MEMO_SIZE);
+
+    private volatile KeyHash mHash;
+
+    /**
+     * @param hash
+     */
+    CacheKeyService(KeyHash hash) {
+        mHash = hash;
+    }
+
+    /**
+     * 切换哈希算法，已记忆的key 全部作废
+     *
+     * @param hash
+     */
+    void setHash(KeyHash hash) {
+        mHash = hash;
+        mMemo.evictAll();
+    }
+
+    /**
+     * @param uri
+     * @return uri 对应的磁盘缓存key
+     */
+    String keyFor(String uri) {
+        String key = mMemo.get(uri);
+        if (key != null) {
+            return key;
+        }
+        KeyHash hash = mHash;
+        key = computeKey(uri, hash);
+        //计算期间切换了算法时不记忆旧算法的结果
+        if (hash == mHash) {
+            mMemo.put(uri, key);
+        }
+        return key;
+    }
+
+    private String computeKey(String uri, KeyHash hash) {
+        Buffers buffers = mBuffers.get();
+        int length = encodeUtf8(uri, buffers);
+        hash.hash(buffers.input, length, buffers.hash);
+        char[] hex = buffers.hex;
+        for (int i = 0; i < buffers.hash.length; i++) {
+            int b = buffers.hash[i] & 0xff;
+            hex[i * 2] = HEX_DIGITS[b >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[b & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * 将 s 按UTF-8 编码写入 buffers.input，空间不足时扩容
+     *
+     * @param s
+     * @param buffers
+     * @return 编码后的字节数
+     */
+    private static int encodeUtf8(String s, Buffers buffers) {
+        int maxLength = s.length() * 3;
+        if (buffers.input.length < maxLength) {
+            buffers.input = new byte[maxLength];
+        }
+        byte[] out = buffers.input;
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xc0 | (c >> 6));
+                out[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out[n++] = (byte) (0xf0 | (codePoint >> 18));
+                out[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                out[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                out[n++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                //不成对的代理字符，与 String.getBytes 一样编码为 '?'
+                out[n++] = '?';
+            } else {
+                out[n++] = (byte) (0xe0 | (c >> 12));
+                out[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return n;
+    }
+}
@@ -10,28 +10,41 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.LruCache;
 import android.widget.ImageView;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ImageLoader class
@@ -56,13 +69,21 @@ public class DLoader {
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
 
     /**
-     * CORE_POOL_SIZE
+     * 磁盘阶段线程数，只做缓存条目查找和文件打开
      */
-    private static final int CORE_POOL_SIZE = CPU_COUNT + 1;
+    private static final int DISK_POOL_SIZE = 2;
     /**
-     * MAXIMUM_POOL_SIZE
+     * 网络阶段线程数，IO 密集，单独限制并发，避免慢速下载占满所有线程
      */
-    private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2 + 1;
+    private static final int NETWORK_POOL_SIZE = 4;
+    /**
+     * 同一个主机同时下载的任务数，留出网络线程给其他主机
+     */
+    private static final int MAX_DOWNLOADS_PER_HOST = 3;
+    /**
+     * 解码阶段线程数，CPU 密集，与核心数一致
+     */
+    private static final int DECODE_POOL_SIZE = CPU_COUNT;
     /**
      * 存活时间10
      */
@@ -72,56 +93,174 @@ public class DLoader {
      * imageView tag标识
      */
     private static final int TAG_KEY_URI = R.id.imageloader_uri;
+    /**
+     * imageView 当前请求句柄标识，重新绑定时用于取消之前的请求
+     */
+    private static final int TAG_KEY_REQUEST = R.id.imageloader_request;
     /**
      * DISK_CACHE_SIZE
      */
     private static final long DISK_CACHE_SIZE = 1024 * 1024 * 50;
+    /**
+     * RESIZED_DISK_CACHE_SIZE，缩放变体磁盘缓存大小
+     */
+    private static final long RESIZED_DISK_CACHE_SIZE = 1024 * 1024 * 20;
+    /**
+     * 缩放变体重新编码为 JPEG 时的质量
+     */
+    private static final int RESIZED_JPEG_QUALITY = 90;
     /**
      * IO_BUFFER_SIZE
      */
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    /**
+     * 下载时每次读写的块大小
+     */
+    private static final int DOWNLOAD_CHUNK_SIZE = 32 * 1024;
+    /**
+     * 不超过该大小的磁盘缓存文件一次读入复用缓冲区再解码，
+     * 避免 BitmapFactory 通过文件描述符逐段 read；更大的文件直接按文件描述符解码，不占用堆内存
+     */
+    private static final int BUFFERED_DECODE_MAX_SIZE = 64 * 1024;
+    /**
+     * 渐进式加载时，超过该大小的磁盘缓存文件先显示预览图
+     */
+    private static final int PROGRESSIVE_MIN_SIZE = 256 * 1024;
+    /**
+     * 渐进式加载时，JPEG 下载到该大小后从未完成的缓存文件头部读取EXIF 缩略图，EXIF 段不超过64KB
+     */
+    private static final int EXIF_PREVIEW_HEADER_SIZE = 64 * 1024;
+    /**
+     * 预览图的边长是目标尺寸的几分之一
+     */
+    private static final int PREVIEW_SCALE = 8;
     /**
      * DISK_CACHE_INDEX
      */
     private static final int DISK_CACHE_INDEX = 0;
+    /**
+     * 图片元数据（宽、高、mimeType）在磁盘缓存条目中的位置
+     */
+    private static final int DISK_METADATA_INDEX = 1;
+    /**
+     * 响应的缓存信息（新鲜期、ETag、Last-Modified）在磁盘缓存条目中的位置，
+     * 缩放变体条目保存生成时原图的缓存信息
+     */
+    private static final int DISK_HEADERS_INDEX = 2;
+    /**
+     * 每个磁盘缓存条目的值个数，原图与缩放变体相同
+     */
+    private static final int DISK_VALUE_COUNT = 3;
     /**
      * 磁盘缓存创建标识 默认false
      */
     private boolean mIsDiskLruCacheCreated = false;
+    /**
+     * 磁盘缓存初始化是否已结束（无论成功与否），结束前进入磁盘阶段的任务在 mPendingDiskTasks 中排队
+     */
+    private volatile boolean mDiskCacheReady = false;
+    /**
+     * 保证磁盘缓存只初始化一次
+     */
+    private final Object mDiskCacheInitLock = new Object();
 
 
     private static volatile DLoader mInstance;
 
 
     private static class LoaderResult {
-        public ImageView imageView;
+        public RequestHandle handle;
+        /**
+         * bitmap 的内存缓存key，预览图与完整图片不同
+         */
+        public String key;
         public String uri;
         public Bitmap bitmap;
 
-        public LoaderResult(ImageView imageView, String uri, Bitmap bitmap) {
-            this.imageView = imageView;
+        public LoaderResult(RequestHandle handle, String key, String uri, Bitmap bitmap) {
+            this.handle = handle;
+            this.key = key;
             this.uri = uri;
             this.bitmap = bitmap;
         }
     }
 
     /**
-     * 线程工厂方法
+     * 暂停期间未命中内存缓存、等待恢复后提交的请求
      */
+    private static class DeferredRequest {
+        public RequestHandle handle;
+        public String uri;
+        public int reqWidth;
+        public int reqHeight;
+        public Priority priority;
+        /**
+         * 恢复时 ImageView 在窗口中的位置，用于按可见顺序提交
+         */
+        public int left;
+        public int top;
 
-    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
-
-        private final AtomicInteger mCount = new AtomicInteger(1);
+        public DeferredRequest(RequestHandle handle, String uri, int reqWidth, int reqHeight, Priority priority) {
+            this.handle = handle;
+            this.uri = uri;
+            this.reqWidth = reqWidth;
+            this.reqHeight = reqHeight;
+            this.priority = priority;
+        }
+    }
 
+    /**
+     * 按窗口中从上到下、从左到右排序
+     */
+    private static final Comparator<DeferredRequest> VISIBLE_ORDER = new Comparator<DeferredRequest>() {
         @Override
-        public Thread newThread(Runnable r) {
-            return new Thread(r, "ImageLoader#" + mCount.getAndIncrement());
+        public int compare(DeferredRequest lhs, DeferredRequest rhs) {
+            if (lhs.top != rhs.top) {
+                return lhs.top < rhs.top ? -1 : 1;
+            }
+            return lhs.left < rhs.left ? -1 : (lhs.left == rhs.left ? 0 : 1);
         }
     };
+
+    /**
+     * 创建一个阶段线程池，队列按 {@link LoadTask} 的优先级和调度策略排序
+     *
+     * @param poolSize
+     * @param name     线程名
+     * @return
+     */
+    private static ThreadPoolExecutor newStageExecutor(int poolSize, final String name) {
+        ThreadFactory threadFactory = new ThreadFactory() {
+
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ImageLoader-" + name + "#" + mCount.getAndIncrement());
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 磁盘阶段线程池
+     */
+    private static final ThreadPoolExecutor DISK_EXECUTOR = newStageExecutor(DISK_POOL_SIZE, "disk");
+    /**
+     * 网络阶段线程池
+     */
+    private static final ThreadPoolExecutor NETWORK_EXECUTOR = newStageExecutor(NETWORK_POOL_SIZE, "network");
+    /**
+     * 解码阶段线程池
+     */
+    private static final ThreadPoolExecutor DECODE_EXECUTOR = newStageExecutor(DECODE_POOL_SIZE, "decode");
     /**
-     * 线程池
+     * 请求提交序号，用于同优先级请求的排序
      */
-    private static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>(), sThreadFactory);
+    private static final AtomicLong sTaskSequence = new AtomicLong();
     /**
      * 主线程Handler
      */
@@ -129,14 +268,21 @@ public class DLoader {
         @Override
         public void handleMessage(Message msg) {
             LoaderResult result = (LoaderResult) msg.obj;
-            ImageView imageView = result.imageView;
-            imageView.setImageBitmap(result.bitmap);
+            String key = result.key;
+            if (result.handle.isCancelled()) {
+                Log.d(TAG, "set Image bitmap,but request is cancelled, ignore!");
+                mActiveResources.cancelPending(key);
+                return;
+            }
+            ImageView imageView = result.handle.imageView;
             //检查ImageView URL 是否发生变化，解决ListView/GridView 加载乱序问题
             String uri = (String) imageView.getTag(TAG_KEY_URI);
-            if (uri.equals(result.uri)) {
+            if (result.uri.equals(uri)) {
+                mActiveResources.bind(imageView, key);
                 imageView.setImageBitmap(result.bitmap);
             } else {
                 Log.d(TAG, "set Image bitmap,but uri has changed, ignore!");
+                mActiveResources.cancelPending(key);
             }
         }
     };
@@ -145,21 +291,119 @@ public class DLoader {
      * mContext
      */
     private final Context mContext;
+    /**
+     * 正在显示的 Bitmap，不占用内存缓存容量，不再显示后放回内存缓存
+     */
+    private final ActiveResources mActiveResources;
+    /**
+     * Bitmap 池，内存缓存淘汰的 Bitmap 在解码时复用
+     */
+    private final BitmapPool mBitmapPool;
+    /**
+     * 分块加载的块缓存，key 为 (uri, 级别, x, y)，所有 {@link TiledImage} 共用
+     */
+    private final LruCache<String, Bitmap> mTileCache;
+    /**
+     * 响应系统内存压力，调整内存缓存和 Bitmap 池的容量
+     */
+    private final MemoryTrimmer mMemoryTrimmer;
     /**
      * ImageSampler 图片压缩和加载器
      */
-    private ImageSampler mImageSampler = new ImageSampler();
+    private final ImageSampler mImageSampler;
+    /**
+     * 内存缓存，按 uri + 目标尺寸 + 解码配置 缓存
+     */
+    private BitmapMemoryCache mMemoryCache;
+    /**
+     * 由uri 生成磁盘缓存key，结果会被记忆
+     */
+    private final CacheKeyService mKeyService = new CacheKeyService(KeyHash.MURMUR3_128);
     /**
-     * LurCache 内存缓存
+     * 解码配置
      */
-    private LruCache<String, Bitmap> mMemoryCache;
+    private volatile Bitmap.Config mDecodeConfig = Bitmap.Config.ARGB_8888;
     /**
      * DiskLruCache 磁盘缓存
      */
     private DiskLruCache mDiskLruCache;
+    /**
+     * 缩放变体磁盘缓存，保存按目标尺寸缩放后重新编码的图片，key 为 缓存key + 目标尺寸。
+     * 启用缩放变体磁盘缓存后才打开
+     */
+    private volatile DiskLruCache mResizedDiskLruCache;
+    /**
+     * 原图缓存key -> 缩放变体key
+     */
+    private final VariantIndex mVariantIndex = new VariantIndex();
+    /**
+     * 是否启用缩放变体磁盘缓存，默认关闭
+     */
+    private volatile boolean mResizedDiskCacheEnabled = false;
+    /**
+     * 启用缩放变体磁盘缓存时，是否继续保留原图，默认不保留
+     */
+    private volatile boolean mKeepOriginalInDiskCache = false;
+    /**
+     * 是否启用渐进式加载，默认关闭
+     */
+    private volatile boolean mProgressiveLoadingEnabled = false;
+    /**
+     * 过期的磁盘缓存条目是否先显示、再在后台验证，默认关闭
+     */
+    private volatile boolean mStaleWhileRevalidate = false;
+    /**
+     * 后台验证中的任务，key 为 缓存key，同一个uri 同时只会有一个后台验证
+     */
+    private final Map<String, LoadTask> mRevalidations = new HashMap<String, LoadTask>();
+    /**
+     * 正在放回内存缓存的预加载结果的内存缓存key
+     */
+    private final Set<String> mPrefetchedKeys = new HashSet<String>();
+    /**
+     * 在途加载任务表，key 为 缓存key + 目标尺寸，相同请求共享同一个任务
+     */
+    private final Map<String, LoadTask> mInFlightTasks = new HashMap<String, LoadTask>();
+    /**
+     * 在途下载表，key 为 缓存key，value 为等待该下载的其他任务，同一个uri 同时只会有一个网络下载
+     */
+    private final Map<String, List<LoadTask>> mInFlightDownloads = new HashMap<String, List<LoadTask>>();
+    /**
+     * 同优先级请求的调度策略，默认后进先出
+     */
+    private volatile SchedulePolicy mSchedulePolicy = SchedulePolicy.LIFO;
+    /**
+     * 下载缓冲区池，每个网络线程最多占用一个
+     */
+    private final ByteArrayPool mDownloadBufferPool = new ByteArrayPool(DOWNLOAD_CHUNK_SIZE, NETWORK_POOL_SIZE);
+    /**
+     * 解码小文件用的缓冲区池，每个解码线程最多占用一个
+     */
+    private final ByteArrayPool mDecodeBufferPool = new ByteArrayPool(BUFFERED_DECODE_MAX_SIZE, DECODE_POOL_SIZE);
+    /**
+     * 累计下载字节数和耗时，用于统计下载吞吐量
+     */
+    private final AtomicLong mDownloadedBytes = new AtomicLong();
+    private final AtomicLong mDownloadMillis = new AtomicLong();
+    /**
+     * 是否暂停提交新的加载任务，只在UI 线程读写
+     */
+    private boolean mPaused = false;
+    /**
+     * 暂停期间延迟提交的请求，每个 ImageView 只保留最新的一个，只在UI 线程读写
+     */
+    private final Map<ImageView, DeferredRequest> mDeferredRequests = new LinkedHashMap<ImageView, DeferredRequest>();
+    /**
+     * 限制同一个主机同时下载的任务数
+     */
+    private final HostLimiter mHostLimiter = new HostLimiter(MAX_DOWNLOADS_PER_HOST);
+    /**
+     * 等待磁盘缓存初始化完成的任务
+     */
+    private final List<LoadTask> mPendingDiskTasks = new ArrayList<LoadTask>();
 
     /**
-     * 私有构造方法
+     * 私有构造方法，只创建内存缓存，磁盘缓存在后台线程初始化
      *
      * @param context
      */
@@ -167,16 +411,73 @@ public class DLoader {
         if(context==null)
             throw new IllegalArgumentException("context must not be null!");
         mContext = context.getApplicationContext();
-        //当前进程可用最大内存
-        int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-        //内存缓存大小是可用最大内存的1/8
-        int cacheSize = maxMemory / 8;
-        mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
+        //应用的标准堆大小，单位KB
+        int memoryClass = MemoryTrimmer.getMemoryClass(mContext);
+        //内存缓存大小是标准堆大小的1/8
+        int cacheSize = memoryClass / 8;
+        //Bitmap 池大小是标准堆大小的1/16
+        int poolSize = memoryClass / 16 * 1024;
+        mActiveResources = new ActiveResources(new ActiveResources.ResourceListener() {
+            @Override
+            public void onResourceReleased(String diskKey, String key, Bitmap bitmap) {
+                addBitmapToMemoryCache(diskKey, key, bitmap);
+            }
+        });
+        mBitmapPool = new BitmapPool(poolSize, mActiveResources);
+        mImageSampler = new ImageSampler(mBitmapPool);
+        mMemoryCache = new BitmapMemoryCache(cacheSize, mBitmapPool, mActiveResources);
+        //块缓存按屏幕大小估算，最多不超过内存缓存的一半
+        int tileCacheSize = Math.min(cacheSize / 2,
+                TiledImage.getTileCacheSize(mContext.getResources().getDisplayMetrics()));
+        mTileCache = new LruCache<String, Bitmap>(Math.max(1, tileCacheSize)) {
             @Override
             protected int sizeOf(String key, Bitmap value) {
                 return value.getRowBytes() * value.getHeight() / 1024;
             }
         };
+        //内存紧张时逐级缩小内存缓存和 Bitmap 池，恢复后再逐级长回预算
+        mMemoryTrimmer = new MemoryTrimmer(mContext, mMemoryCache, cacheSize, mBitmapPool, poolSize, mTileCache,
+                mDownloadBufferPool, mDecodeBufferPool);
+        mContext.registerComponentCallbacks(mMemoryTrimmer);
+        //打开磁盘缓存需要创建目录、读取日志，放到后台线程进行，不阻塞首次调用 with() 的线程
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                initDiskCache();
+            }
+        }, "ImageLoader-init").start();
+    }
+
+    /**
+     * 初始化磁盘缓存，完成后放行排队中的任务，重复调用直接返回
+     */
+    private void initDiskCache() {
+        synchronized (mDiskCacheInitLock) {
+            if (mDiskCacheReady) {
+                return;
+            }
+            List<LoadTask> pending;
+            try {
+                openDiskCaches();
+            } finally {
+                //打开失败时同样放行，任务退化为直接从网络加载
+                synchronized (mPendingDiskTasks) {
+                    mDiskCacheReady = true;
+                    pending = new ArrayList<LoadTask>(mPendingDiskTasks);
+                    mPendingDiskTasks.clear();
+                }
+            }
+            Log.d(TAG, "disk cache ready, release " + pending.size() + " pending tasks");
+            for (LoadTask task : pending) {
+                DISK_EXECUTOR.execute(task);
+            }
+        }
+    }
+
+    /**
+     * 创建缓存目录并打开磁盘缓存，已经启用缩放变体磁盘缓存时一并打开
+     */
+    private void openDiskCaches() {
         //创建DiskCacheDir磁盘缓存
         File diskCacheDir = getDiskCacheDir(mContext, "bitmap");
         if (!diskCacheDir.exists()) {
@@ -184,12 +485,37 @@ public class DLoader {
         }
         if (getUsableSpace(diskCacheDir) > DISK_CACHE_SIZE) {
             try {
-                mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1, DISK_CACHE_SIZE);
+                mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, DISK_VALUE_COUNT, DISK_CACHE_SIZE);
                 mIsDiskLruCacheCreated = true;
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+        if (mResizedDiskCacheEnabled) {
+            openResizedDiskCache();
+        }
+    }
+
+    /**
+     * 创建缩放变体磁盘缓存，并登记其中已有的缩放变体。只在持有 mDiskCacheInitLock 时调用，已经打开时直接返回
+     */
+    private void openResizedDiskCache() {
+        if (mResizedDiskLruCache != null || !mIsDiskLruCacheCreated) {
+            return;
+        }
+        File resizedCacheDir = getDiskCacheDir(mContext, "bitmap_resized");
+        if (!resizedCacheDir.exists()) {
+            resizedCacheDir.mkdirs();
+        }
+        if (getUsableSpace(resizedCacheDir) > RESIZED_DISK_CACHE_SIZE) {
+            try {
+                DiskLruCache cache = DiskLruCache.open(resizedCacheDir, 1, DISK_VALUE_COUNT, RESIZED_DISK_CACHE_SIZE);
+                mVariantIndex.addAll(cache.keys());
+                mResizedDiskLruCache = cache;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -211,309 +537,1413 @@ public class DLoader {
     }
 
     /**
-     * 将 指定的bitmap 加入 内存缓存中
+     * 预热：在当前线程同步完成磁盘缓存的初始化，建议在 Application.onCreate 中从后台线程调用，
+     * 之后的磁盘请求不需要再等待初始化
+     * <p/>
+     * NOTE THAT:can not run in UI Thread
      *
-     * @param key
-     * @param bitmap
+     * @param context
+     * @return the instance of ImageLoader
      */
-    private void addBitmapToMemoryCache(String key, Bitmap bitmap) {
-        if (getBitmapFromMemCache(key) == null) {
-            mMemoryCache.put(key, bitmap);
+    public static DLoader warmUp(Context context) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new RuntimeException("can not warm up DLoader from UI Thread");
         }
+        DLoader loader = with(context);
+        loader.initDiskCache();
+        return loader;
     }
 
     /**
-     * 从 内存缓存中取得bitmap
+     * 打开一张超大图片用于分块加载，磁盘缓存中没有时先下载到磁盘缓存。
+     * 下载与普通加载一样经过网络阶段，同一个uri 正在下载时等待这次下载，并受每个主机的下载数限制
+     * <p/>
+     * NOTE THAT:can not run in UI Thread
      *
-     * @param key
+     * @param uri
      * @return
+     * @throws IOException 磁盘缓存不可用、下载失败或图片格式不支持分块解码
      */
-    private Bitmap getBitmapFromMemCache(String key) {
-
-        return mMemoryCache.get(key);
+    public TiledImage openTiledImage(String uri) throws IOException {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new RuntimeException("can not open tiled image from UI Thread");
+        }
+        initDiskCache();
+        if (mDiskLruCache == null) {
+            throw new IOException("DiskLruCache is not created");
+        }
+        final Bitmap.Config config = mDecodeConfig;
+        final String diskKey = mKeyService.keyFor(uri);
+        DiskLruCache.Snapshot snapShot = mDiskLruCache.get(diskKey);
+        if (snapShot == null) {
+            //只下载到磁盘缓存，任务不进入在途任务表，不会有请求挂载上来把整张大图解码
+            LoadTask task = new LoadTask(this, diskKey, diskKey, uri, 0, 0, config);
+            task.diskOnly = true;
+            task.schedule(Priority.IMMEDIATE, mSchedulePolicy.order(sTaskSequence.getAndIncrement()));
+            dispatch(task, LoadTask.STAGE_NETWORK);
+            try {
+                task.awaitCompletion();
+            } catch (InterruptedException e) {
+                task.cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while downloading,uri:" + uri);
+            }
+            snapShot = mDiskLruCache.get(diskKey);
+            if (snapShot == null) {
+                throw new IOException("download fail,uri:" + uri);
+            }
+        }
+        try {
+            //每个解码线程最多使用一个区域解码器
+            return new TiledImage(diskKey, snapShot.getFile(DISK_CACHE_INDEX), config, mTileCache,
+                    DECODE_EXECUTOR, DECODE_POOL_SIZE);
+        } finally {
+            snapShot.close();
+        }
     }
 
     /**
-     * load bitmap from memory cache or disk cache or network aync,then bind imageView and
-     * bitmap
-     * <p/>
-     * NOTE THAT:should run id UI Thread
+     * 将 指定的bitmap 加入 内存缓存中
      *
-     * @param uri       http url
-     * @param imageView bitmap's bind object
+     * @param diskKey 磁盘缓存key
+     * @param key     内存缓存key
+     * @param bitmap
      */
-
-    public void load(final String uri, final ImageView imageView) {
-        load(uri, imageView, 0, 0);
+    private void addBitmapToMemoryCache(String diskKey, String key, Bitmap bitmap) {
+        boolean prefetched;
+        synchronized (mPrefetchedKeys) {
+            prefetched = mPrefetchedKeys.contains(key);
+        }
+        if (prefetched) {
+            mMemoryCache.putPrefetched(diskKey, key, bitmap);
+        } else {
+            mMemoryCache.put(diskKey, key, bitmap);
+        }
     }
 
     /**
-     * @param uri
-     * @param imageView
-     * @param reqWidth
-     * @param reqHeight
+     * 设置解码配置，例如 {@link Bitmap.Config#RGB_565} 可以减少一半内存，只对之后提交的请求生效
+     *
+     * @param config 默认 {@link Bitmap.Config#ARGB_8888}
      */
-    public void load(final String uri, final ImageView imageView, final int reqWidth, final int reqHeight) {
-
+    public void setDecodeConfig(Bitmap.Config config) {
+        if (config == null)
+            throw new IllegalArgumentException("config must not be null!");
+        mDecodeConfig = config;
+    }
 
-        //内存中有直接取得
+    /**
+     * 设置由uri 生成缓存key 的哈希算法，需要在第一次加载之前设置，
+     * 切换后之前写入的磁盘缓存不再命中，会随LRU 淘汰
+     *
+     * @param hash 默认 {@link KeyHash#MURMUR3_128}
+     */
+    public void setKeyHash(KeyHash hash) {
+        if (hash == null)
+            throw new IllegalArgumentException("hash must not be null!");
+        mKeyService.setHash(hash);
+    }
 
-        imageView.setTag(TAG_KEY_URI, uri);
-        Bitmap bitmap = loadBitmapFromMemCache(uri);
-        if (bitmap != null) {
-            imageView.setImageBitmap(bitmap);
+    /**
+     * 启用缩放变体磁盘缓存：指定尺寸的请求解码原图后，将缩放结果重新编码保存，
+     * 之后同尺寸的磁盘命中只需解码很小的文件，适合大图缩略图列表
+     *
+     * @param enabled 默认 false
+     */
+    public void setResizedDiskCacheEnabled(boolean enabled) {
+        mResizedDiskCacheEnabled = enabled;
+        if (!enabled) {
             return;
         }
-
-        //否则创建Runnable,丢到线程池中进行处理
-
-        Runnable loadBitmapTask = new Runnable() {
+        //第一次启用时才在后台线程打开缩放变体磁盘缓存；磁盘缓存还没初始化时由初始化线程一并打开
+        new Thread(new Runnable() {
             @Override
             public void run() {
-                Bitmap bitmap = loadBitmapInternal(uri, reqWidth, reqHeight);
-                if (bitmap != null) {
-                    LoaderResult result = new LoaderResult(imageView, uri, bitmap);
-                    mMainHandler.obtainMessage(MESSAGE_POST_RESULT, result).sendToTarget();
+                synchronized (mDiskCacheInitLock) {
+                    if (mDiskCacheReady) {
+                        openResizedDiskCache();
+                    }
                 }
             }
-        };
-        THREAD_POOL_EXECUTOR.execute(loadBitmapTask);
+        }, "ImageLoader-init").start();
     }
 
-
     /**
-     * 从缓存，磁盘，或者网络中加载
+     * 启用缩放变体磁盘缓存时，保存缩放变体后是否继续保留原图。
+     * 保留时请求其他尺寸不需要重新下载，但要多占用磁盘空间
      *
-     * @param uri
-     * @param reqWidth
-     * @param reqHeight
-     * @return bitmap, maybe null.
+     * @param keep 默认 false，只保留缩放变体
      */
-    private Bitmap loadBitmapInternal(String uri, int reqWidth, int reqHeight) {
-
-        //1.先从内存中取
-        Bitmap bitmap = loadBitmapFromMemCache(uri);
-        if (bitmap != null) {
-            Log.d(TAG, "loadBitmapFromMemCache,uri:" + uri);
-            return bitmap;
-        }
-
-        try {
-            //2.从磁盘缓存当中取
-            bitmap = loadBitmapFromDiskCache(uri, reqWidth, reqHeight);
-            if (bitmap != null) {
-                Log.d(TAG, "loadBitmapFromDiskCache,uri:" + uri);
-                return bitmap;
-            }
-            //3.从网络中取，后续执行了缓存操作
-            bitmap = loadBitmapFromHttp(uri, reqWidth, reqHeight);
-            Log.d(TAG, "loadBitmapFromHttp,uri:" + uri);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        //遇到错误，硬盘缓存没有创建那么直接从网络中取，不进行缓存
-        if (bitmap == null && !mIsDiskLruCacheCreated) {
-            Log.w(TAG, "encounter error,DiskLruCache is not created.");
-            bitmap = downloadBitmapFromUrl(uri);
-        }
-        return bitmap;
+    public void setKeepOriginalInDiskCache(boolean keep) {
+        mKeepOriginalInDiskCache = keep;
     }
 
     /**
-     * 从内存中加载bitmap
+     * 启用渐进式加载：较大的图片解码前先显示EXIF 内嵌缩略图或高倍采样的预览图，
+     * 完整图片解码完成后替换。预览图同样进入内存缓存，再次绑定时先同步显示预览图
      *
-     * @param uri
-     * @return
+     * @param enabled 默认 false
      */
-    private Bitmap loadBitmapFromMemCache(String uri) {
-        final String key = hashKeyFormUrl(uri);
-        Bitmap bitmap = getBitmapFromMemCache(key);
-        return bitmap;
+    public void setProgressiveLoadingEnabled(boolean enabled) {
+        mProgressiveLoadingEnabled = enabled;
     }
 
     /**
-     * 从网络加载Bitmap
+     * 磁盘缓存条目按响应头（Cache-Control max-age、Expires、Last-Modified）过期后，默认先向服务器发送
+     * 条件请求，未修改时继续使用本地数据。启用后过期的条目直接显示，同时在后台以
+     * {@link Priority#PREFETCH} 优先级验证，验证结果在下一次加载时生效
      *
-     * @param url
-     * @param reqWidth
-     * @param reqHeight
-     * @return
-     * @throws IOException
+     * @param enabled 默认 false
      */
-    private Bitmap loadBitmapFromHttp(String url, int reqWidth, int reqHeight) throws IOException {
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            throw new RuntimeException("can not visit network from UI Thread");
-        }
-        if (mDiskLruCache == null) {
-            return null;
-        }
-        //创建磁盘条目
-        String key = hashKeyFormUrl(url);
-        DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-        if (editor != null) {
-            OutputStream outputStream = editor.newOutputStream(DISK_CACHE_INDEX);
-            //从网络加载数据，并写入文件系统
-            if (downLoadUrlToStream(url, outputStream)) {
-                editor.commit();
-            } else {
-                editor.abort();
-            }
-            mDiskLruCache.flush();
-        }
-        //最后再从磁盘中取得这个bitmap
-        return loadBitmapFromDiskCache(url, reqWidth, reqHeight);
+    public void setStaleWhileRevalidate(boolean enabled) {
+        mStaleWhileRevalidate = enabled;
     }
 
     /**
-     * 从磁盘缓存中加载Bitmap
+     * 设置同优先级请求的调度策略，只对之后提交的请求生效
      *
-     * @param url
-     * @param reqWidth
-     * @param reqHeight
-     * @return Bitmap
-     * @throws IOException
+     * @param policy 默认 {@link SchedulePolicy#LIFO}
      */
-    private Bitmap loadBitmapFromDiskCache(String url, int reqWidth, int reqHeight) throws IOException {
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            Log.w(TAG, "load bitmap from UI Thread,it's not recommended!");
-        }
-        if (mDiskLruCache == null) {
-            return null;
-        }
-        Bitmap bitmap = null;
-        String key = hashKeyFormUrl(url);
-        DiskLruCache.Snapshot snapShot = mDiskLruCache.get(key);
-        if (snapShot != null) {
-            //取硬盘缓存文件输入流
-            FileInputStream fileInputStream = (FileInputStream) snapShot.getInputStream(DISK_CACHE_INDEX);
-            //拿到文件描述符
-            FileDescriptor fileDescriptor = fileInputStream.getFD();
-            //加载图片
-            bitmap = mImageSampler.decodeSampleBitmapFromFileDescriptor(fileDescriptor, reqWidth, reqHeight);
-            //加入内存缓存中
-            if (bitmap != null) {
-                addBitmapToMemoryCache(key, bitmap);
-            }
-        }
-        return bitmap;
+    public void setSchedulePolicy(SchedulePolicy policy) {
+        if (policy == null)
+            throw new IllegalArgumentException("policy must not be null!");
+        mSchedulePolicy = policy;
     }
 
     /**
-     * 从网络下载图片，构建一个输出流
-     *
-     * @param urlString
-     * @param outputStream
-     * @return
+     * @return 累计从网络写入磁盘缓存的字节数
      */
-    private boolean downLoadUrlToStream(String urlString, OutputStream outputStream) {
-        HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
+    public long getDownloadedBytes() {
+        return mDownloadedBytes.get();
+    }
 
-        try {
-            final URL url = new URL(urlString);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
-            return true;
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-            Log.e(TAG, "downloadBitmap fail: " + e);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+    /**
+     * @return 累计下载耗时，单位毫秒，与 {@link #getDownloadedBytes()} 一起计算下载吞吐量
+     */
+    public long getDownloadMillis() {
+        return mDownloadMillis.get();
+    }
+
+    /**
+     * @return 内存缓存命中次数
+     */
+    public int getMemoryCacheHitCount() {
+        return mMemoryCache.hitCount();
+    }
+
+    /**
+     * @return 内存缓存未命中次数，与 {@link #getMemoryCacheHitCount()} 一起计算命中率
+     */
+    public int getMemoryCacheMissCount() {
+        return mMemoryCache.missCount();
+    }
+
+    /**
+     * @return 内存缓存因容量淘汰的次数
+     */
+    public int getMemoryCacheEvictionCount() {
+        return mMemoryCache.evictionCount();
+    }
+
+    /**
+     * @return Bitmap 池命中次数
+     */
+    public int getBitmapPoolHitCount() {
+        return mBitmapPool.hitCount();
+    }
+
+    /**
+     * @return Bitmap 池未命中次数
+     */
+    public int getBitmapPoolMissCount() {
+        return mBitmapPool.missCount();
+    }
+
+    /**
+     * @return Bitmap 池当前持有的字节数
+     */
+    public int getBitmapPoolSize() {
+        return mBitmapPool.size();
+    }
+
+    /**
+     * load bitmap from memory cache or disk cache or network aync,then bind imageView and
+     * bitmap
+     * <p/>
+     * NOTE THAT:should run id UI Thread
+     *
+     * @param uri       http url
+     * @param imageView bitmap's bind object
+     * @return request handle, can be used to cancel the request.
+     */
+
+    public RequestHandle load(final String uri, final ImageView imageView) {
+        return load(uri, imageView, 0, 0);
+    }
+
+    /**
+     * @param uri
+     * @param imageView
+     * @param reqWidth
+     * @param reqHeight
+     * @return request handle, can be used to cancel the request.
+     */
+    public RequestHandle load(final String uri, final ImageView imageView, final int reqWidth, final int reqHeight) {
+        return load(uri, imageView, reqWidth, reqHeight, Priority.NORMAL);
+    }
+
+    /**
+     * @param uri
+     * @param imageView
+     * @param reqWidth
+     * @param reqHeight
+     * @param priority  请求优先级，高优先级的请求先执行
+     * @return request handle, can be used to cancel the request.
+     */
+    public RequestHandle load(final String uri, final ImageView imageView, final int reqWidth, final int reqHeight,
+                              final Priority priority) {
+
+        RequestHandle previous = (RequestHandle) imageView.getTag(TAG_KEY_REQUEST);
+        imageView.setTag(TAG_KEY_URI, uri);
+        mMemoryTrimmer.maybeRegrow();
+
+        //正在显示或内存中有直接取得
+        final Bitmap.Config config = mDecodeConfig;
+        final String diskKey = mKeyService.keyFor(uri);
+        final String taskKey = BitmapMemoryCache.createKey(diskKey, reqWidth, reqHeight, config);
+        //查找的同时登记为显示中，之后不会被其他线程淘汰进入 Bitmap 池
+        Bitmap bitmap = mMemoryCache.acquire(diskKey, taskKey, true);
+        if (bitmap != null) {
+            if (previous != null) {
+                previous.cancel();
             }
-            try {
-                if (out != null)
-                    out.close();
-                if (in != null)
-                    in.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            mActiveResources.bind(imageView, taskKey);
+            imageView.setImageBitmap(bitmap);
+            RequestHandle handle = new RequestHandle(this, imageView, null);
+            imageView.setTag(TAG_KEY_REQUEST, handle);
+            return handle;
+        }
+        //渐进式加载时先显示已缓存的预览图，完整图片加载完成后替换
+        if (mProgressiveLoadingEnabled) {
+            String previewKey = BitmapMemoryCache.createPreviewKey(taskKey);
+            Bitmap preview = mMemoryCache.acquire(diskKey, previewKey, false);
+            if (preview != null) {
+                mActiveResources.bind(imageView, previewKey);
+                imageView.setImageBitmap(preview);
+            }
+        }
+
+        //暂停期间先记录下来，恢复时再提交；同一个ImageView 已经在加载同一张图时沿用之前的请求
+        if (mPaused) {
+            if (previous != null && previous.task != null && previous.task.taskKey.equals(taskKey)
+                    && !previous.isCancelled()) {
+                return previous;
             }
+            if (previous != null) {
+                previous.cancel();
+            }
+            RequestHandle handle = new RequestHandle(this, imageView, null);
+            mDeferredRequests.put(imageView, new DeferredRequest(handle, uri, reqWidth, reqHeight, priority));
+            imageView.setTag(TAG_KEY_REQUEST, handle);
+            return handle;
+        }
+
+        //否则挂载到在途任务上，没有在途任务则创建新任务丢到线程池中进行处理
+        LoadTask task;
+        RequestHandle handle;
+        boolean isNewTask = false;
+        synchronized (mInFlightTasks) {
+            task = mInFlightTasks.get(taskKey);
+            //同一个ImageView 重复绑定同一个请求，沿用之前的句柄
+            if (task != null && previous != null && previous.task == task && !previous.isCancelled()) {
+                reschedule(task, priority);
+                return previous;
+            }
+            if (task == null) {
+                task = new LoadTask(this, taskKey, diskKey, uri, reqWidth, reqHeight, config);
+                mInFlightTasks.put(taskKey, task);
+                isNewTask = true;
+            } else {
+                Log.d(TAG, "attach to in-flight task,uri:" + uri);
+                //挂载到只预加载磁盘的任务上，需要继续解码
+                task.diskOnly = false;
+            }
+            handle = new RequestHandle(this, imageView, task);
+            task.attach(handle);
+        }
+        //ImageView 被重新绑定，取消之前的请求
+        if (previous != null) {
+            previous.cancel();
+        }
+        imageView.setTag(TAG_KEY_REQUEST, handle);
+        if (isNewTask) {
+            task.schedule(priority, mSchedulePolicy.order(sTaskSequence.getAndIncrement()));
+            dispatch(task, LoadTask.STAGE_DISK);
+        } else {
+            reschedule(task, priority);
         }
-        return false;
+        return handle;
     }
 
     /**
-     * 建立网络连接，下载图片，返回Bitmap
+     * 暂停提交新的加载任务，例如列表快速滑动时。暂停期间内存缓存命中的请求照常同步显示，
+     * 未命中的请求按 ImageView 记录下来，同一个 ImageView 只保留最新的请求，
+     * 调用 {@link #resume()} 后按可见顺序提交，Adapter 不需要重新绑定
+     * <p/>
+     * NOTE THAT:should run id UI Thread
      *
-     * @param urlString
-     * @return
+     * @see PauseOnScrollListener
      */
-    private Bitmap downloadBitmapFromUrl(String urlString) {
+    public void pause() {
+        mPaused = true;
+    }
+
+    /**
+     * 恢复提交加载任务，并按 ImageView 在窗口中从上到下、从左到右的顺序提交暂停期间记录的请求，
+     * 已经不在显示的 ImageView 被跳过
+     * <p/>
+     * NOTE THAT:should run id UI Thread
+     */
+    public void resume() {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+        List<DeferredRequest> requests = new ArrayList<DeferredRequest>(mDeferredRequests.values());
+        mDeferredRequests.clear();
+        int[] location = new int[2];
+        for (DeferredRequest request : requests) {
+            request.handle.imageView.getLocationInWindow(location);
+            request.left = location[0];
+            request.top = location[1];
+        }
+        Collections.sort(requests, VISIBLE_ORDER);
+        //后提交先出队的策略下倒序提交，保证第一个可见项最先加载
+        if (mSchedulePolicy.order(1) < mSchedulePolicy.order(0)) {
+            Collections.reverse(requests);
+        }
+        for (DeferredRequest request : requests) {
+            ImageView imageView = request.handle.imageView;
+            if (request.handle.isCancelled() || !imageView.isShown()) {
+                continue;
+            }
+            load(request.uri, imageView, request.reqWidth, request.reqHeight, request.priority);
+        }
+    }
+
+    /**
+     * @return 是否处于暂停状态
+     */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * 以 {@link Priority#PREFETCH} 优先级预加载一组图片，不绑定 ImageView，
+     * 之后以相同的uri 和目标尺寸调用 {@link #load} 时直接命中缓存。
+     * 已在内存中或正在加载的uri 会被跳过
+     * <p/>
+     * 无论调度策略如何，同一批预加载都按 uris 中的顺序执行，调用方应把离可见区域近的放在前面
+     * <p/>
+     * 预加载任务只在可见请求的队列之后执行，已经开始的预加载不会被中断
+     *
+     * @param uris
+     * @param reqWidth
+     * @param reqHeight
+     * @param level     预加载到磁盘缓存还是内存缓存
+     */
+    public void preload(List<String> uris, int reqWidth, int reqHeight, PreloadLevel level) {
+        if (level == null)
+            throw new IllegalArgumentException("level must not be null!");
+        final Bitmap.Config config = mDecodeConfig;
+        final SchedulePolicy policy = mSchedulePolicy;
+        //预留一段提交序号，按策略换算后排序值随下标递增
+        final int count = uris.size();
+        final long base = sTaskSequence.getAndAdd(count);
+        final boolean ascending = policy.order(base) < policy.order(base + 1);
+        for (int i = 0; i < count; i++) {
+            String uri = uris.get(i);
+            String diskKey = mKeyService.keyFor(uri);
+            String taskKey = BitmapMemoryCache.createKey(diskKey, reqWidth, reqHeight, config);
+            if (mActiveResources.get(taskKey) != null) {
+                continue;
+            }
+            //预加载不是真正的访问，不记录频率，也不计入命中率
+            if (mMemoryCache.peek(taskKey) != null) {
+                continue;
+            }
+            LoadTask task;
+            synchronized (mInFlightTasks) {
+                if (mInFlightTasks.containsKey(taskKey)) {
+                    continue;
+                }
+                task = new LoadTask(this, taskKey, diskKey, uri, reqWidth, reqHeight, config);
+                task.diskOnly = level == PreloadLevel.DISK;
+                mInFlightTasks.put(taskKey, task);
+            }
+            Log.d(TAG, "preload " + level + ",uri:" + uri);
+            task.schedule(Priority.PREFETCH, policy.order(ascending ? base + i : base + count - 1 - i));
+            dispatch(task, LoadTask.STAGE_DISK);
+        }
+    }
 
+    /**
+     * 在途任务有新的请求挂载，任务还在队列中时按新的优先级和提交序号重新入队，
+     * LIFO 策略下最近绑定的请求总是最先出队
+     *
+     * @param task
+     * @param priority
+     */
+    private void reschedule(LoadTask task, Priority priority) {
+        ThreadPoolExecutor executor = executorForStage(task.stage);
+        if (executor.remove(task)) {
+            task.schedule(priority, mSchedulePolicy.order(sTaskSequence.getAndIncrement()));
+            if (!task.isCancelled()) {
+                executor.execute(task);
+            }
+        }
+    }
+
+    /**
+     * @param stage
+     * @return 对应阶段的线程池
+     */
+    private static ThreadPoolExecutor executorForStage(int stage) {
+        switch (stage) {
+            case LoadTask.STAGE_NETWORK:
+                return NETWORK_EXECUTOR;
+            case LoadTask.STAGE_DECODE:
+                return DECODE_EXECUTOR;
+            default:
+                return DISK_EXECUTOR;
+        }
+    }
+
+    /**
+     * 将任务交接到指定阶段的线程池
+     *
+     * @param task
+     * @param stage
+     */
+    private void dispatch(LoadTask task, int stage) {
+        task.stage = stage;
+        if (stage == LoadTask.STAGE_DISK && !mDiskCacheReady) {
+            synchronized (mPendingDiskTasks) {
+                if (!mDiskCacheReady) {
+                    mPendingDiskTasks.add(task);
+                    return;
+                }
+            }
+        }
+        executorForStage(stage).execute(task);
+    }
+
+    /**
+     * 已经打开磁盘缓存条目的任务交给解码阶段，只预加载磁盘的任务到此结束
+     *
+     * @param task
+     */
+    private void dispatchDecode(LoadTask task) {
+        boolean finished;
+        synchronized (mInFlightTasks) {
+            //与 load() 挂载请求互斥，任务移出任务表之后不会再有请求挂载上来
+            finished = task.diskOnly;
+            if (finished && mInFlightTasks.get(task.taskKey) == task) {
+                mInFlightTasks.remove(task.taskKey);
+            }
+        }
+        if (finished) {
+            onTaskComplete(task, null);
+            return;
+        }
+        dispatch(task, LoadTask.STAGE_DECODE);
+    }
+
+    /**
+     * 在后台验证过期的磁盘缓存条目，任务不进入在途任务表，也不解码
+     *
+     * @param uri
+     * @param diskKey
+     * @param headers 条目保存的缓存信息
+     */
+    private void revalidate(String uri, String diskKey, CacheHeaders headers) {
+        LoadTask task;
+        synchronized (mRevalidations) {
+            if (mRevalidations.containsKey(diskKey)) {
+                return;
+            }
+            task = new LoadTask(this, diskKey, diskKey, uri, 0, 0, mDecodeConfig);
+            task.diskOnly = true;
+            task.validators = headers.hasValidators() ? headers : null;
+            mRevalidations.put(diskKey, task);
+        }
+        task.schedule(Priority.PREFETCH, mSchedulePolicy.order(sTaskSequence.getAndIncrement()));
+        dispatch(task, LoadTask.STAGE_NETWORK);
+    }
+
+    /**
+     * @param task
+     * @return 任务是否还在等待磁盘缓存初始化
+     */
+    private boolean removePendingDiskTask(LoadTask task) {
+        synchronized (mPendingDiskTasks) {
+            return mPendingDiskTasks.remove(task);
+        }
+    }
+
+    /**
+     * 取消 ImageView 上尚未完成的请求
+     * <p/>
+     * NOTE THAT:should run id UI Thread
+     *
+     * @param imageView
+     */
+    public void cancel(ImageView imageView) {
+        RequestHandle handle = (RequestHandle) imageView.getTag(TAG_KEY_REQUEST);
+        if (handle != null) {
+            handle.cancel();
+        }
+    }
+
+    /**
+     * 从任务上移除被取消的请求，任务没有等待者时整体取消：
+     * 尚未开始的从线程池队列中移除，已经开始的在下载和解码的检查点停止
+     *
+     * @param handle
+     */
+    void cancelRequest(RequestHandle handle) {
+        LoadTask task = handle.task;
+        if (task == null) {
+            //延迟提交的请求直接丢弃，内存缓存命中的请求没有需要取消的
+            DeferredRequest deferred = mDeferredRequests.get(handle.imageView);
+            if (deferred != null && deferred.handle == handle) {
+                mDeferredRequests.remove(handle.imageView);
+            }
+            return;
+        }
+        boolean abandoned;
+        synchronized (mInFlightTasks) {
+            abandoned = task.detach(handle);
+            if (abandoned) {
+                task.cancel();
+                if (mInFlightTasks.get(task.taskKey) == task) {
+                    mInFlightTasks.remove(task.taskKey);
+                }
+            }
+        }
+        if (abandoned && (executorForStage(task.stage).remove(task) || removePendingDiskTask(task)
+                || mHostLimiter.remove(task))) {
+            Log.d(TAG, "remove cancelled task from queue,uri:" + task.uri);
+            task.releaseSnapshot();
+            releaseHostSlot(task);
+            task.complete();
+        }
+    }
+
+    /**
+     * 任务执行结束，从在途任务表中移除，并将结果分发给所有等待的 ImageView
+     *
+     * @param task
+     * @param bitmap maybe null.
+     */
+    private void onTaskComplete(LoadTask task, Bitmap bitmap) {
+        onTaskComplete(task, task.taskKey, bitmap);
+    }
+
+    /**
+     * 任务执行结束，结果以 key 登记为显示中
+     *
+     * @param task
+     * @param key    bitmap 的内存缓存key，直接复用同尺寸变体时为该变体的key
+     * @param bitmap maybe null.
+     */
+    private void onTaskComplete(LoadTask task, String key, Bitmap bitmap) {
+        task.releaseSnapshot();
+        synchronized (mRevalidations) {
+            if (mRevalidations.get(task.diskKey) == task) {
+                mRevalidations.remove(task.diskKey);
+            }
+        }
+        //移出任务表之前先登记一个引用，之后的同key 请求能在显示中的 Bitmap 里找到，不会重复解码；
+        //同时保证投递之前不会被淘汰进入 Bitmap 池
+        if (bitmap != null) {
+            bitmap = activateBitmap(key, task.diskKey, bitmap);
+        }
+        List<RequestHandle> targets;
+        synchronized (mInFlightTasks) {
+            if (mInFlightTasks.get(task.taskKey) == task) {
+                mInFlightTasks.remove(task.taskKey);
+            }
+            //在移出任务表之后取目标，保证不会有新的 ImageView 挂载进来而收不到结果
+            targets = task.targets();
+        }
+        task.complete();
+        if (bitmap == null) {
+            return;
+        }
+        if (!task.isCancelled()) {
+            for (RequestHandle handle : targets) {
+                mActiveResources.activate(key, task.diskKey, bitmap);
+                LoaderResult result = new LoaderResult(handle, key, task.uri, bitmap);
+                mMainHandler.obtainMessage(MESSAGE_POST_RESULT, result).sendToTarget();
+            }
+        }
+        //没有任何请求的任务只能是预加载到内存的任务，结果放回内存缓存时跳过准入比较，
+        //否则还没有访问记录的预加载图片会被主区域的图片挤掉
+        boolean prefetched = targets.isEmpty() && !task.isCancelled();
+        if (prefetched) {
+            synchronized (mPrefetchedKeys) {
+                mPrefetchedKeys.add(key);
+            }
+        }
+        //释放上面登记的引用，没有投递任何结果时 Bitmap 放回内存缓存
+        mActiveResources.cancelPending(key);
+        if (prefetched) {
+            synchronized (mPrefetchedKeys) {
+                mPrefetchedKeys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * 登记即将显示的 Bitmap，并将其移出内存缓存
+     *
+     * @param key     内存缓存key
+     * @param diskKey
+     * @param bitmap
+     * @return 实际要显示的 Bitmap
+     */
+    private Bitmap activateBitmap(String key, String diskKey, Bitmap bitmap) {
+        Bitmap active = mActiveResources.activate(key, diskKey, bitmap);
+        mMemoryCache.remove(key);
+        return active;
+    }
+
+
+    /**
+     * 执行任务当前所处的阶段
+     *
+     * @param task
+     */
+    void runStage(LoadTask task) {
+        if (task.isCancelled()) {
+            //排队期间被取消的任务可能已经接手了主机名额
+            releaseHostSlot(task);
+            onTaskComplete(task, null);
+            return;
+        }
+        switch (task.stage) {
+            case LoadTask.STAGE_DISK:
+                runDiskStage(task);
+                break;
+            case LoadTask.STAGE_NETWORK:
+                runNetworkStage(task);
+                break;
+            case LoadTask.STAGE_DECODE:
+                runDecodeStage(task);
+                break;
+        }
+    }
+
+    /**
+     * 磁盘阶段：先复查内存缓存，再查找磁盘缓存条目，命中则交给解码阶段，否则交给网络阶段
+     *
+     * @param task
+     */
+    private void runDiskStage(LoadTask task) {
+        //1.先从内存中取，没有精确匹配时从同一个uri 较大的变体缩放得到，load() 中已经记录过这次访问
+        //查找的同时登记为显示中，投递完成后释放
+        Bitmap bitmap = mMemoryCache.acquire(task.diskKey, task.taskKey, false);
+        if (bitmap != null) {
+            Log.d(TAG, "loadBitmapFromMemCache,uri:" + task.uri);
+            onTaskComplete(task, bitmap);
+            mActiveResources.cancelPending(task.taskKey);
+            return;
+        }
+        BitmapMemoryCache.Variant variant = mMemoryCache.getFromLargerVariant(task.diskKey, task.reqWidth,
+                task.reqHeight, task.config);
+        if (variant != null) {
+            Log.d(TAG, "loadBitmapFromMemCache variant,uri:" + task.uri);
+            onTaskComplete(task, variant.key, variant.bitmap);
+            mActiveResources.cancelPending(variant.key);
+            return;
+        }
+        //2.从磁盘缓存当中取，优先取缩放变体，新鲜度都以原图的缓存信息为准；过期时带上验证信息走网络阶段
+        try {
+            if (openResizedSnapshot(task) || openDiskSnapshot(task)) {
+                CacheHeaders headers = task.snapshotHeaders;
+                if (headers == null || headers.isFresh(System.currentTimeMillis())) {
+                    task.validators = null;
+                    dispatchDecode(task);
+                    return;
+                }
+                if (mStaleWhileRevalidate) {
+                    Log.d(TAG, "serve stale and revalidate,uri:" + task.uri);
+                    revalidate(task.uri, task.diskKey, headers);
+                    dispatchDecode(task);
+                    return;
+                }
+                Log.d(TAG, "disk cache stale,uri:" + task.uri);
+                task.validators = headers.hasValidators() ? headers : null;
+                task.releaseSnapshot();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            task.releaseSnapshot();
+        }
+        //3.从网络中取
+        dispatch(task, LoadTask.STAGE_NETWORK);
+    }
+
+    /**
+     * 网络阶段：下载并写入磁盘缓存，成功后交给解码阶段
+     *
+     * @param task
+     */
+    private void runNetworkStage(LoadTask task) {
+        //同一个主机同时下载的任务数有上限，超出的任务在主机队列中等待，不占用线程
+        if (!mHostLimiter.tryAcquire(task)) {
+            Log.d(TAG, "wait for host slot,uri:" + task.uri);
+            return;
+        }
+        try {
+            download(task);
+        } finally {
+            releaseHostSlot(task);
+        }
+    }
+
+    /**
+     * 释放任务持有的主机名额，名额交给同一主机的下一个等待任务
+     *
+     * @param task
+     */
+    private void releaseHostSlot(LoadTask task) {
+        LoadTask next = mHostLimiter.release(task);
+        if (next != null) {
+            dispatch(next, LoadTask.STAGE_NETWORK);
+        }
+    }
+
+    /**
+     * 下载并写入磁盘缓存，成功后交给解码阶段
+     *
+     * @param task
+     */
+    private void download(LoadTask task) {
+        //硬盘缓存没有创建那么直接从网络中取，不进行缓存
+        if (mDiskLruCache == null) {
+            Log.w(TAG, "encounter error,DiskLruCache is not created.");
+            onTaskComplete(task, downloadBitmapFromUrl(task.uri));
+            return;
+        }
+        String key = task.diskKey;
+        //同一个key 只允许一个任务下载，其余任务挂起等待，不占用线程
+        synchronized (mInFlightDownloads) {
+            List<LoadTask> waiters = mInFlightDownloads.get(key);
+            if (waiters != null) {
+                Log.d(TAG, "wait for in-flight download,uri:" + task.uri);
+                waiters.add(task);
+                return;
+            }
+            mInFlightDownloads.put(key, new ArrayList<LoadTask>());
+        }
+        try {
+            loadBitmapFromHttp(task);
+            Log.d(TAG, "loadBitmapFromHttp,uri:" + task.uri);
+            //不允许保存的响应已经直接解码，磁盘缓存中没有条目
+            Bitmap uncached = task.uncachedBitmap;
+            if (uncached != null) {
+                task.uncachedBitmap = null;
+                onTaskComplete(task, uncached);
+                return;
+            }
+            if (openDiskSnapshot(task)) {
+                dispatchDecode(task);
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            List<LoadTask> waiters;
+            synchronized (mInFlightDownloads) {
+                waiters = mInFlightDownloads.remove(key);
+            }
+            //等待者重新走磁盘阶段，下载被取消或失败时由等待者重新发起下载
+            for (LoadTask waiter : waiters) {
+                dispatch(waiter, LoadTask.STAGE_DISK);
+            }
+        }
+        onTaskComplete(task, null);
+    }
+
+    /**
+     * 解码阶段：从磁盘缓存条目解码 Bitmap
+     *
+     * @param task
+     */
+    private void runDecodeStage(LoadTask task) {
         Bitmap bitmap = null;
-        HttpURLConnection urlConnection = null;
-        BufferedInputStream in = null;
         try {
-            final URL url = new URL(urlString);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            bitmap = BitmapFactory.decodeStream(in);
-        } catch (MalformedURLException e) {
+            bitmap = loadBitmapFromDiskCache(task);
+            if (bitmap != null) {
+                Log.d(TAG, "loadBitmapFromDiskCache,uri:" + task.uri);
+            }
+        } catch (IOException e) {
             e.printStackTrace();
+        }
+        boolean saveVariant = bitmap != null && !task.isResizedSnapshot() && resizedCacheKey(task) != null;
+        //编码缩放变体期间保持一个显示中的引用，请求都已取消时 Bitmap 也不会被淘汰进 Bitmap 池、
+        //被其他解码作为 inBitmap 覆盖
+        if (saveVariant) {
+            bitmap = activateBitmap(task.taskKey, task.diskKey, bitmap);
+        }
+        onTaskComplete(task, bitmap);
+        //先分发结果，再保存缩放变体，不影响显示
+        if (saveVariant) {
+            try {
+                saveResizedVariant(task, bitmap);
+            } finally {
+                mActiveResources.cancelPending(task.taskKey);
+            }
+        }
+    }
+
+    /**
+     * @param task
+     * @return 缩放变体磁盘缓存key，不需要缩放变体的请求返回null
+     */
+    private String resizedCacheKey(LoadTask task) {
+        if (!mResizedDiskCacheEnabled || mResizedDiskLruCache == null || task.reqWidth == 0 || task.reqHeight == 0) {
+            return null;
+        }
+        return VariantIndex.keyFor(task.diskKey, task.reqWidth, task.reqHeight);
+    }
+
+    /**
+     * 打开任务对应的缩放变体磁盘缓存条目
+     * <p/>
+     * 原图还在时以原图的缓存信息判断新鲜度，304 刷新原图后变体也随之新鲜；变体由原图之前的版本生成时删除变体，
+     * 视为未命中。只保留缩放变体时没有原图，使用变体生成时复制的缓存信息，过期后只能重新下载，不发送条件请求
+     *
+     * @param task
+     * @return 是否命中
+     * @throws IOException
+     */
+    private boolean openResizedSnapshot(LoadTask task) throws IOException {
+        String key = resizedCacheKey(task);
+        if (key == null) {
+            return false;
+        }
+        DiskLruCache.Snapshot snapShot = mResizedDiskLruCache.get(key);
+        if (snapShot == null) {
+            //已经被淘汰，顺便清理索引
+            mVariantIndex.remove(key);
+            return false;
+        }
+        task.setSnapshot(snapShot, true);
+        CacheHeaders copy = CacheHeaders.parse(snapShot.getString(DISK_HEADERS_INDEX));
+        DiskLruCache.Snapshot original = mDiskLruCache != null ? mDiskLruCache.get(task.diskKey) : null;
+        if (original == null) {
+            task.snapshotHeaders = copy != null ? copy.withoutValidators() : null;
+            return true;
+        }
+        CacheHeaders headers;
+        try {
+            headers = CacheHeaders.parse(original.getString(DISK_HEADERS_INDEX));
+        } finally {
+            original.close();
+        }
+        if (copy != null && headers != null && !copy.sameValidators(headers)) {
+            Log.d(TAG, "resized variant outdated,uri:" + task.uri);
+            task.releaseSnapshot();
+            mResizedDiskLruCache.remove(key);
+            mVariantIndex.remove(key);
+            return false;
+        }
+        task.snapshotHeaders = headers;
+        return true;
+    }
+
+    /**
+     * 原图解码时发生了缩放，则将缩放结果重新编码写入缩放变体磁盘缓存
+     *
+     * @param task
+     * @param bitmap 从原图解码得到的Bitmap
+     */
+    private void saveResizedVariant(LoadTask task, Bitmap bitmap) {
+        String key = resizedCacheKey(task);
+        ImageMetadata source = task.snapshotMetadata;
+        if (key == null || source == null || bitmap.getWidth() >= source.width) {
+            return;
+        }
+        boolean hasAlpha = bitmap.hasAlpha();
+        OutputStream out = null;
+        try {
+            DiskLruCache.Editor editor = mResizedDiskLruCache.edit(key);
+            if (editor == null) {
+                return;
+            }
+            out = editor.newOutputStream(DISK_CACHE_INDEX);
+            boolean success = bitmap.compress(hasAlpha ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                    RESIZED_JPEG_QUALITY, out);
+            DiskLruCache.closeQuietly(out);
+            if (success) {
+                ImageMetadata metadata = new ImageMetadata(bitmap.getWidth(), bitmap.getHeight(),
+                        hasAlpha ? "image/png" : "image/jpeg");
+                editor.set(DISK_METADATA_INDEX, metadata.encode());
+                CacheHeaders headers = task.snapshotHeaders;
+                editor.set(DISK_HEADERS_INDEX, headers != null ? headers.encode() : "");
+                editor.commit();
+                mVariantIndex.add(key);
+                Log.d(TAG, "save resized variant " + bitmap.getWidth() + "x" + bitmap.getHeight() + ",uri:" + task.uri);
+                //只保留缩放变体时删除原图
+                if (!mKeepOriginalInDiskCache) {
+                    mDiskLruCache.remove(task.diskKey);
+                }
+            } else {
+                editor.abort();
+            }
         } catch (IOException e) {
             e.printStackTrace();
-            Log.e(TAG, "Error in downloadBitmap: " + e);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            DiskLruCache.closeQuietly(out);
+        }
+    }
+
+    /**
+     * 删除由原图生成的全部缩放变体
+     *
+     * @param diskKey 原图缓存key
+     * @throws IOException
+     */
+    private void invalidateResizedVariants(String diskKey) throws IOException {
+        DiskLruCache cache = mResizedDiskLruCache;
+        if (cache == null) {
+            return;
+        }
+        for (String key : mVariantIndex.removeAll(diskKey)) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * 打开任务对应的磁盘缓存条目
+     *
+     * @param task
+     * @return 是否命中磁盘缓存
+     * @throws IOException
+     */
+    private boolean openDiskSnapshot(LoadTask task) throws IOException {
+        if (mDiskLruCache == null) {
+            return false;
+        }
+        DiskLruCache.Snapshot snapShot = mDiskLruCache.get(task.diskKey);
+        if (snapShot == null) {
+            return false;
+        }
+        task.setSnapshot(snapShot, false);
+        task.snapshotHeaders = CacheHeaders.parse(snapShot.getString(DISK_HEADERS_INDEX));
+        return true;
+    }
+
+    /**
+     * 将较小的缓存文件一次读入复用缓冲区后解码
+     *
+     * @param snapShot
+     * @param task
+     * @param metadata
+     * @return
+     * @throws IOException
+     */
+    private Bitmap decodeBufferedSnapshot(DiskLruCache.Snapshot snapShot, LoadTask task, ImageMetadata metadata)
+            throws IOException {
+        FileChannel channel = snapShot.getChannel(DISK_CACHE_INDEX);
+        int length = (int) snapShot.getLength(DISK_CACHE_INDEX);
+        byte[] buffer = mDecodeBufferPool.obtain();
+        try {
+            //按绝对位置读取，不受预览图解码移动过的文件位置影响
+            ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+            while (target.hasRemaining()) {
+                if (channel.read(target, target.position()) == -1) {
+                    throw new EOFException("disk cache file truncated");
+                }
             }
-            //MyUtils.close(in);
+            return mImageSampler.decodeSampleBitmapFromByteArray(buffer, 0, length, task.reqWidth, task.reqHeight,
+                    task.config, metadata.width, metadata.height);
+        } finally {
+            mDecodeBufferPool.recycle(buffer);
+        }
+    }
+
+    /**
+     * 以最高优先级提交预览图解码，由另一个解码线程与下载或完整图片的解码并行进行，完整图片不必等待预览图
+     *
+     * @param task
+     * @param file     缓存文件，或下载中的JPEG 未完成的缓存文件
+     * @param metadata 下载中为null，只读取EXIF 缩略图
+     */
+    private void dispatchPreview(LoadTask task, File file, ImageMetadata metadata) {
+        PreviewTask preview = new PreviewTask(task, file, metadata);
+        preview.schedule(Priority.IMMEDIATE, mSchedulePolicy.order(sTaskSequence.getAndIncrement()));
+        DECODE_EXECUTOR.execute(preview);
+    }
+
+    /**
+     * 预览图解码任务
+     */
+    private final class PreviewTask extends PriorityTask {
+        private final LoadTask mTask;
+        private final File mFile;
+        private final ImageMetadata mMetadata;
+
+        PreviewTask(LoadTask task, File file, ImageMetadata metadata) {
+            mTask = task;
+            mFile = file;
+            mMetadata = metadata;
+        }
+
+        @Override
+        public void run() {
+            deliverPreview(mTask, mFile, mMetadata);
+        }
+    }
+
+    /**
+     * 解码预览图并投递给任务当前所有的请求，预览图已在内存中、没有请求或完整图片已经完成时跳过
+     *
+     * @param task
+     * @param file     缓存文件
+     * @param metadata 为null 时只读取EXIF 缩略图
+     */
+    private void deliverPreview(LoadTask task, File file, ImageMetadata metadata) {
+        String previewKey = BitmapMemoryCache.createPreviewKey(task.taskKey);
+        if (mActiveResources.get(previewKey) != null || mMemoryCache.peek(previewKey) != null) {
+            return;
+        }
+        if (task.isCompleted() || task.isCancelled() || task.targets().isEmpty()) {
+            return;
+        }
+        Bitmap preview = null;
+        //JPEG 优先取EXIF 内嵌的缩略图，只需读取文件头部
+        if (metadata == null || "image/jpeg".equals(metadata.mimeType)) {
+            preview = mImageSampler.decodeExifThumbnail(file, task.config);
+        }
+        if (preview == null && metadata != null) {
+            int reqWidth = task.reqWidth > 0 ? task.reqWidth : metadata.width;
+            int reqHeight = task.reqHeight > 0 ? task.reqHeight : metadata.height;
+            FileInputStream in = null;
             try {
-                if (in != null)
-                    in.close();
+                in = new FileInputStream(file);
+                preview = mImageSampler.decodeSampleBitmapFromFileDescriptor(in.getFD(),
+                        Math.max(1, reqWidth / PREVIEW_SCALE), Math.max(1, reqHeight / PREVIEW_SCALE), task.config,
+                        metadata.width, metadata.height);
             } catch (IOException e) {
-                e.printStackTrace();
+                //条目已被删除或替换
+                Log.w(TAG, "decode preview fail: " + e);
+            } finally {
+                DiskLruCache.closeQuietly(in);
             }
         }
-        return bitmap;
+        if (preview == null) {
+            return;
+        }
+        //与完整图片一样先登记一个引用，投递完成后释放，没有投递时放回内存缓存
+        preview = activateBitmap(previewKey, task.diskKey, preview);
+        //与 complete() 互斥：完整图片在任务结束之后才投递，预览图要么先于它进入主线程消息队列，要么不再投递
+        synchronized (task) {
+            if (!task.isCompleted()) {
+                Log.d(TAG, "deliver preview " + preview.getWidth() + "x" + preview.getHeight() + ",uri:" + task.uri);
+                for (RequestHandle handle : task.targets()) {
+                    if (handle.isCancelled()) {
+                        continue;
+                    }
+                    mActiveResources.activate(previewKey, task.diskKey, preview);
+                    LoaderResult result = new LoaderResult(handle, previewKey, task.uri, preview);
+                    mMainHandler.obtainMessage(MESSAGE_POST_RESULT, result).sendToTarget();
+                }
+            }
+        }
+        mActiveResources.cancelPending(previewKey);
+    }
 
+    /**
+     * 从网络加载图片并写入磁盘缓存
+     *
+     * @param task
+     * @return 是否下载成功
+     * @throws IOException
+     */
+    private boolean loadBitmapFromHttp(LoadTask task) throws IOException {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new RuntimeException("can not visit network from UI Thread");
+        }
+        //创建磁盘条目
+        DiskLruCache.Editor editor = mDiskLruCache.edit(task.diskKey);
+        if (editor == null) {
+            return false;
+        }
+        //从网络加载数据，并写入文件系统；条目过期时发送条件请求
+        CacheHeaders validators = task.validators;
+        CacheHeaders headers = downLoadUrlToStream(task.uri, editor, task, validators);
+        if (headers != null && headers.notModified) {
+            //未修改：只更新缓存信息，继续使用本地数据
+            Log.d(TAG, "not modified,uri:" + task.uri);
+            editor.set(DISK_HEADERS_INDEX, headers.encode());
+            try {
+                editor.commit();
+            } catch (IllegalStateException e) {
+                //验证期间条目已被淘汰，没有本地数据可用
+                Log.w(TAG, "entry evicted while revalidating,uri:" + task.uri);
+                return false;
+            }
+            return true;
+        }
+        //记录图片尺寸，之后每次磁盘命中都不需要再解析图片头，无法解析的数据不写入缓存
+        ImageMetadata metadata = headers != null ? readMetadata(editor) : null;
+        if (metadata != null) {
+            editor.set(DISK_METADATA_INDEX, metadata.encode());
+            editor.set(DISK_HEADERS_INDEX, headers.encode());
+            editor.commit();
+            //原图被新的响应替换，之前由它生成的缩放变体作废；没有启用时不会生成变体，
+            //之前留下的变体在命中时与原图的校验信息比较，同样不会被使用
+            if (mResizedDiskCacheEnabled) {
+                invalidateResizedVariants(task.diskKey);
+            }
+        } else {
+            editor.abort();
+        }
+        //日志由磁盘缓存的后台线程批量写入，这里不再逐次flush
+        return metadata != null;
     }
 
     /**
-     * 对URL进行 MD5加密，返回加密后得到字符串
+     * 从刚下载完成的数据中解析图片元数据
      *
-     * @param url
-     * @return
+     * @param editor
+     * @return 不是可解码的图片时返回null
+     * @throws IOException
      */
-    private String hashKeyFormUrl(String url) {
-        String cacheKey;
+    private ImageMetadata readMetadata(DiskLruCache.Editor editor) throws IOException {
+        FileInputStream in = (FileInputStream) editor.newDirtyInputStream(DISK_CACHE_INDEX);
+        if (in == null) {
+            return null;
+        }
         try {
-            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(url.getBytes());
-            cacheKey = bytesToHexString(mDigest.digest());
+            BitmapFactory.Options options = mImageSampler.decodeBoundsFromFileDescriptor(in.getFD());
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                Log.w(TAG, "downloaded data is not an image");
+                return null;
+            }
+            return new ImageMetadata(options.outWidth, options.outHeight, options.outMimeType);
+        } finally {
+            DiskLruCache.closeQuietly(in);
+        }
+    }
 
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(url.hashCode());
+    /**
+     * 从磁盘或网络阶段打开的缓存条目中解码Bitmap
+     *
+     * @param task
+     * @return Bitmap
+     * @throws IOException
+     */
+    private Bitmap loadBitmapFromDiskCache(LoadTask task) throws IOException {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Log.w(TAG, "load bitmap from UI Thread,it's not recommended!");
+        }
+        DiskLruCache.Snapshot snapShot = task.getSnapshot();
+        if (snapShot == null) {
+            return null;
+        }
+        //取硬盘缓存文件输入流
+        FileInputStream fileInputStream = (FileInputStream) snapShot.getInputStream(DISK_CACHE_INDEX);
+        //拿到文件描述符
+        FileDescriptor fileDescriptor = fileInputStream.getFD();
+        //请求已被取消，不再解码
+        if (task.isCancelled()) {
+            Log.d(TAG, "task cancelled before decode,uri:" + task.uri);
+            return null;
         }
-        return cacheKey;
+        //加载图片，有元数据时一次解码完成
+        ImageMetadata metadata = ImageMetadata.parse(snapShot.getString(DISK_METADATA_INDEX));
+        task.snapshotMetadata = metadata;
+        if (mProgressiveLoadingEnabled && metadata != null && !task.isResizedSnapshot()
+                && snapShot.getLength(DISK_CACHE_INDEX) >= PROGRESSIVE_MIN_SIZE) {
+            dispatchPreview(task, snapShot.getFile(DISK_CACHE_INDEX), metadata);
+        }
+        Bitmap bitmap;
+        if (metadata != null && snapShot.getLength(DISK_CACHE_INDEX) <= BUFFERED_DECODE_MAX_SIZE) {
+            bitmap = decodeBufferedSnapshot(snapShot, task, metadata);
+        } else if (metadata != null) {
+            bitmap = mImageSampler.decodeSampleBitmapFromFileDescriptor(fileDescriptor, task.reqWidth, task.reqHeight, task.config,
+                    metadata.width, metadata.height);
+        } else {
+            bitmap = mImageSampler.decodeSampleBitmapFromFileDescriptor(fileDescriptor, task.reqWidth, task.reqHeight, task.config);
+        }
+        //由 onTaskComplete 登记为显示中，不再显示后进入内存缓存
+        return bitmap;
+    }
+
+    /**
+     * 从网络下载图片，写入磁盘缓存条目
+     *
+     * @param urlString
+     * @param editor     磁盘缓存条目，只有响应为200 时才写入图片数据
+     * @param task       用于检查请求是否已被取消
+     * @param validators 过期条目的缓存信息，不为null 时发送条件请求
+     * @return 响应的缓存信息，304 时为刷新后的本地缓存信息，下载失败时返回null
+     */
+    private CacheHeaders downLoadUrlToStream(String urlString, DiskLruCache.Editor editor, LoadTask task,
+                                             CacheHeaders validators) {
+        HttpURLConnection urlConnection = null;
+        InputStream in = null;
+        OutputStream outputStream = null;
+        boolean failed = false;
+        //按块读写，缓冲区从池中复用，不再需要额外的 Buffered 流
+        byte[] buffer = mDownloadBufferPool.obtain();
+        long startTime = SystemClock.elapsedRealtime();
+        long total = 0;
+
+        try {
+            urlConnection = HttpConnections.open(urlString);
+            if (validators != null) {
+                validators.addValidators(urlConnection);
+            }
+            int responseCode = urlConnection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+                //304 没有响应体，取空的输入流以便连接放回连接池
+                in = urlConnection.getInputStream();
+                return validators.refresh(urlConnection, System.currentTimeMillis());
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.e(TAG, "downloadBitmap fail,response code:" + responseCode + ",uri:" + urlString);
+                return null;
+            }
+            long responseTime = System.currentTimeMillis();
+            in = urlConnection.getInputStream();
+            if (CacheHeaders.isNoStore(urlConnection)) {
+                //响应不允许保存：不写入磁盘缓存条目，由调用方放弃编辑，响应体直接解码
+                Log.d(TAG, "no-store response, decode without disk cache,uri:" + urlString);
+                task.uncachedBitmap = decodeUncached(urlConnection, in, buffer, task);
+                return null;
+            }
+            outputStream = editor.newOutputStream(DISK_CACHE_INDEX);
+            //大的JPEG 不等下载完成，头部到达后就尝试显示EXIF 缩略图
+            boolean earlyPreview = mProgressiveLoadingEnabled
+                    && urlConnection.getContentLength() >= PROGRESSIVE_MIN_SIZE;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                if (total == 0 && (count < 2 || buffer[0] != (byte) 0xFF || buffer[1] != (byte) 0xD8)) {
+                    earlyPreview = false;
+                }
+                outputStream.write(buffer, 0, count);
+                total += count;
+                if (earlyPreview && total >= EXIF_PREVIEW_HEADER_SIZE) {
+                    earlyPreview = false;
+                    dispatchPreview(task, editor.getDirtyFile(DISK_CACHE_INDEX), null);
+                }
+                //每读取一块检查一次请求是否已被取消
+                if (task.isCancelled()) {
+                    Log.d(TAG, "task cancelled while downloading,uri:" + urlString);
+                    return null;
+                }
+            }
+            long elapsed = SystemClock.elapsedRealtime() - startTime;
+            mDownloadedBytes.addAndGet(total);
+            mDownloadMillis.addAndGet(elapsed);
+            Log.d(TAG, "download " + total + " bytes in " + elapsed + "ms,uri:" + urlString);
+            return CacheHeaders.fromResponse(urlConnection, responseTime);
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            failed = true;
+            e.printStackTrace();
+            Log.e(TAG, "downloadBitmap fail: " + e);
+        } finally {
+            //读完响应体，不断开连接，连接回到连接池复用
+            if (failed) {
+                HttpConnections.abort(urlConnection, in);
+            } else {
+                HttpConnections.release(urlConnection, in, buffer);
+            }
+            mDownloadBufferPool.recycle(buffer);
+            DiskLruCache.closeQuietly(outputStream);
+        }
+        return null;
     }
 
     /**
-     * 字节数据转化为 16进制字符串
+     * 读取不允许保存的响应体并按目标尺寸解码，只预加载磁盘的任务不需要结果，直接返回
      *
-     * @param bytes
+     * @param urlConnection
+     * @param in        响应体
+     * @param buffer    读取缓冲区
+     * @param task      用于检查请求是否已被取消
+     * @return 任务已被取消、不需要解码或数据不是图片时返回null
+     * @throws IOException
+     */
+    private Bitmap decodeUncached(HttpURLConnection urlConnection, InputStream in, byte[] buffer, LoadTask task)
+            throws IOException {
+        synchronized (mInFlightTasks) {
+            if (task.diskOnly) {
+                return null;
+            }
+        }
+        int contentLength = urlConnection.getContentLength();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(contentLength > 0 ? contentLength : buffer.length);
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            body.write(buffer, 0, count);
+            if (task.isCancelled()) {
+                Log.d(TAG, "task cancelled while downloading,uri:" + task.uri);
+                return null;
+            }
+        }
+        byte[] data = body.toByteArray();
+        return mImageSampler.decodeSampleBitmapFromByteArray(data, 0, data.length, task.reqWidth, task.reqHeight,
+                task.config);
+    }
+
+    /**
+     * 建立网络连接，下载图片，返回Bitmap
+     *
+     * @param urlString
      * @return
      */
-    private String bytesToHexString(byte[] bytes) {
+    private Bitmap downloadBitmapFromUrl(String urlString) {
 
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
+        Bitmap bitmap = null;
+        HttpURLConnection urlConnection = null;
+        BufferedInputStream in = null;
+        boolean failed = false;
+        try {
+            urlConnection = HttpConnections.open(urlString);
+            int responseCode = urlConnection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.e(TAG, "Error in downloadBitmap,response code:" + responseCode);
+                return null;
+            }
+            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
+            bitmap = BitmapFactory.decodeStream(in);
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            failed = true;
+            e.printStackTrace();
+            Log.e(TAG, "Error in downloadBitmap: " + e);
+        } finally {
+            if (failed) {
+                HttpConnections.abort(urlConnection, in);
+            } else {
+                //解码器不一定读到数据末尾，读完剩余数据后连接才能复用
+                byte[] buffer = mDownloadBufferPool.obtain();
+                HttpConnections.release(urlConnection, in, buffer);
+                mDownloadBufferPool.recycle(buffer);
             }
-            sb.append(hex);
         }
-        return sb.toString();
+        return bitmap;
+
     }
 
     /**
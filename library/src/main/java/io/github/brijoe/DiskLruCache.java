@@ -17,35 +17,48 @@
 package io.github.brijoe;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  ******************************************************************************
@@ -96,13 +109,40 @@ import java.util.concurrent.TimeUnit;
  * an error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
+ *
+ * <p>There is no cache-wide lock. Entries live in a concurrent index and each
+ * {@link Entry} is its own monitor for its edit state, so reads, edits and
+ * removals of different keys proceed in parallel and value files are opened
+ * without blocking other keys. Records for one key are queued while its entry
+ * lock is held, so they reach the journal in order, but waiting for a flush
+ * always happens after the lock is released. LRU order is kept as a
+ * per-entry access stamp instead of an access-ordered map.
+ *
+ * <p>Journal records are not written by the calling thread. They are queued in
+ * a lock-free queue and a background writer thread appends them in batches, so
+ * one flush commits every record queued since the last one. {@link #get} never
+ * waits for journal I/O. See {@link Durability} for when records are forced
+ * to the filesystem.
  */
  final class DiskLruCache implements Closeable {
-    static final String JOURNAL_FILE = "journal";
-    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String JOURNAL_FILE = "journal.bin";
+    static final String JOURNAL_FILE_TMP = "journal.bin.tmp";
+    /** The text journal of earlier versions, migrated on open. */
+    static final String LEGACY_JOURNAL_FILE = "journal";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
+    /** "DLJN" */
+    static final int BINARY_MAGIC = 0x444c4a4e;
+    static final int VERSION_2 = 2;
     static final long ANY_SEQUENCE_NUMBER = -1;
+    private static final byte OP_CLEAN = 1;
+    private static final byte OP_DIRTY = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_READ = 4;
+    /** Op code and key hash. */
+    private static final int RECORD_HEADER_SIZE = 1 + 8;
+    /** Magic, version, app version and value count. */
+    private static final int JOURNAL_HEADER_SIZE = 4 * 4;
     private static final String CLEAN = "CLEAN";
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
@@ -111,9 +151,62 @@ import java.util.concurrent.TimeUnit;
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+    /**
+     * How long the journal writer sleeps when idle, and the flush interval of
+     * {@link Durability#PERIODIC}.
+     */
+    private static final long JOURNAL_WRITE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Controls when journal records reach the filesystem. Whatever the mode,
+     * a DIRTY record is always flushed before {@link #edit} returns, so a crash
+     * can never leave value files that the journal doesn't know about; a lost
+     * CLEAN record only costs the entry, which is deleted as dirty on the next
+     * open.
+     */
+    public enum Durability {
+        /** CLEAN and REMOVE wait until their batch has been flushed. */
+        PER_OP,
+        /** Records are flushed at most {@link #JOURNAL_WRITE_INTERVAL_MILLIS} after they are queued. */
+        PERIODIC,
+        /** Records are flushed only by {@link #flush()} and {@link #close()}. */
+        ON_CLOSE
+    }
+
     /*
-     * This cache uses a journal file named "journal". A typical journal file
-     * looks like this:
+     * This cache uses a binary journal file named "journal.bin". All numbers
+     * are big-endian. The file starts with a 16 byte header: the magic number
+     * 0x444c4a4e ("DLJN"), the journal version (2), the application's version
+     * and the value count.
+     *
+     * Each subsequent record starts with a one byte op code and the 64-bit
+     * FNV-1a hash of the entry's key:
+     *   o DIRTY (2) tracks that an entry is actively being created or updated.
+     *     It is followed by the key: a 16-bit length and its UTF-8 bytes.
+     *     Every successful DIRTY action should be followed by a CLEAN or REMOVE
+     *     action. DIRTY records without a matching CLEAN or REMOVE indicate that
+     *     temporary files may need to be deleted.
+     *   o CLEAN (1) tracks a cache entry that has been successfully published
+     *     and may be read. It is followed by the key, the sequence number of
+     *     the edit and the 64-bit length of each of its values.
+     *   o READ (4) tracks accesses for LRU. Fixed width, the hash only.
+     *   o REMOVE (3) tracks entries that have been deleted. Fixed width, the
+     *     hash only.
+     *
+     * READ and REMOVE refer to an entry by hash alone; replay resolves the
+     * hash against keys seen earlier in the file and only allocates a key
+     * string the first time a key appears. The whole file is mapped and
+     * parsed in one pass on open. A record cut short by a crash ends the
+     * replay and the journal is rewritten.
+     *
+     * The journal file is appended to as cache operations occur. The journal may
+     * occasionally be compacted by dropping redundant records; a compacted
+     * journal holds exactly one CLEAN or DIRTY record per entry in LRU order and
+     * doubles as a snapshot checkpoint of the index. A temporary file named
+     * "journal.bin.tmp" will be used during compaction; that file should be
+     * deleted if it exists when the cache is opened.
+     *
+     * Caches written by earlier versions have a text journal named "journal":
      *     libcore.io.DiskLruCache
      *     1
      *     100
@@ -121,54 +214,64 @@ import java.util.concurrent.TimeUnit;
      *
      *     CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832 21054
      *     DIRTY 335c4c6028171cfddfbaae1a9c313c52
-     *     CLEAN 335c4c6028171cfddfbaae1a9c313c52 3934 2342
      *     REMOVE 335c4c6028171cfddfbaae1a9c313c52
-     *     DIRTY 1ab96a171faeeee38496d8b330771a7a
-     *     CLEAN 1ab96a171faeeee38496d8b330771a7a 1600 234
-     *     READ 335c4c6028171cfddfbaae1a9c313c52
      *     READ 3400330d1dfc7f3f7f4b8d4d803dfcf6
      *
-     * The first five lines of the journal form its header. They are the
-     * constant string "libcore.io.DiskLruCache", the disk cache's version,
-     * the application's version, the value count, and a blank line.
-     *
-     * Each of the subsequent lines in the file is a record of the state of a
-     * cache entry. Each line contains space-separated values: a state, a key,
-     * and optional state-specific values.
-     *   o DIRTY lines track that an entry is actively being created or updated.
-     *     Every successful DIRTY action should be followed by a CLEAN or REMOVE
-     *     action. DIRTY lines without a matching CLEAN or REMOVE indicate that
-     *     temporary files may need to be deleted.
-     *   o CLEAN lines track a cache entry that has been successfully published
-     *     and may be read. A publish line is followed by the lengths of each of
-     *     its values.
-     *   o READ lines track accesses for LRU.
-     *   o REMOVE lines track entries that have been deleted.
-     *
-     * The journal file is appended to as cache operations occur. The journal may
-     * occasionally be compacted by dropping redundant lines. A temporary file named
-     * "journal.tmp" will be used during compaction; that file should be deleted if
-     * it exists when the cache is opened.
+     * It is replayed once, rewritten as a binary journal and deleted. Like the
+     * binary header, the text header must match the app version and value
+     * count passed to open(); otherwise the cache is cleared, not migrated.
+     * DLoader's caches hold more values per entry than the versions that
+     * wrote text journals, so they are always cleared on upgrade.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File legacyJournalFile;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
-    private long size = 0;
-    private Writer journalWriter;
-    private final LinkedHashMap<String, Entry> lruEntries
-            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
-    private int redundantOpCount;
+    private final AtomicLong size = new AtomicLong();
+    private final Durability durability;
+    /** Guards {@link #journalWriter}. Never acquire an entry lock while holding it. */
+    private final Object journalLock = new Object();
+    private OutputStream journalWriter;
+    /**
+     * Records written while {@link #rebuildJournal} is running, replayed into
+     * the new journal before the swap. Guarded by {@link #journalLock}.
+     */
+    private List<byte[]> compactionBacklog;
+    /** Set by {@link #readJournal} when the journal ends with a partial record. */
+    private boolean journalTruncated;
+    /** Records waiting for the journal writer thread. */
+    private final ConcurrentLinkedQueue<JournalRecord> journalQueue
+            = new ConcurrentLinkedQueue<JournalRecord>();
+    /** Null until the journal has been read or created. */
+    private volatile Thread journalThread;
+    private volatile boolean journalThreadParked;
+    private volatile boolean closed;
+    private final ConcurrentHashMap<String, Entry> lruEntries
+            = new ConcurrentHashMap<String, Entry>();
+    private final AtomicInteger redundantOpCount = new AtomicInteger();
 
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
      * its sequence number is not equal to its entry's sequence number.
      */
-    private long nextSequenceNumber = 0;
+    private final AtomicLong nextSequenceNumber = new AtomicLong();
+
+    /**
+     * Source of access stamps. The entry with the smallest stamp is the least
+     * recently used one.
+     */
+    private final AtomicLong accessCounter = new AtomicLong();
+
+    private static final Comparator<Entry> LEAST_RECENTLY_USED_FIRST = new Comparator<Entry>() {
+        @Override public int compare(Entry lhs, Entry rhs) {
+            return lhs.lastAccess < rhs.lastAccess ? -1 : (lhs.lastAccess == rhs.lastAccess ? 0 : 1);
+        }
+    };
 
     /* From java.util.Arrays */
     @SuppressWarnings("unchecked")
@@ -271,27 +374,38 @@ import java.util.concurrent.TimeUnit;
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
-            synchronized (DiskLruCache.this) {
-                if (journalWriter == null) {
-                    return null; // closed
-                }
-                trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
-                }
+            if (isClosed()) {
+                return null; // closed
+            }
+            trimToSize();
+            if (journalRebuildRequired()) {
+                rebuildJournal();
+                redundantOpCount.set(0);
             }
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            Durability durability) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.legacyJournalFile = new File(directory, LEGACY_JOURNAL_FILE);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.durability = durability;
+    }
+
+    /**
+     * Opens the cache with {@link Durability#PERIODIC} journal flushes.
+     *
+     * @see #open(File, int, int, long, Durability)
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
+            throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, Durability.PERIODIC);
     }
 
     /**
@@ -302,10 +416,11 @@ import java.util.concurrent.TimeUnit;
      * @param appVersion
      * @param valueCount the number of values per cache entry. Must be positive.
      * @param maxSize the maximum number of bytes this cache should use to store
+     * @param durability when journal records are forced to the filesystem
      * @throws IOException if reading or writing the cache directory fails
      */
-    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
-            throws IOException {
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            Durability durability) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -314,30 +429,219 @@ import java.util.concurrent.TimeUnit;
         }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, durability);
         if (cache.journalFile.exists()) {
             try {
                 cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                deleteIfExists(cache.legacyJournalFile);
+                if (cache.journalTruncated) {
+                    cache.rebuildJournal();
+                } else {
+                    cache.journalWriter = new BufferedOutputStream(
+                            new FileOutputStream(cache.journalFile, true), IO_BUFFER_SIZE);
+                }
+                cache.startJournalThread();
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
 //                        + journalIsCorrupt.getMessage() + ", removing");
                 cache.delete();
             }
+        } else if (cache.legacyJournalFile.exists()) {
+            try {
+                cache.readLegacyJournal();
+                cache.processJournal();
+                cache.rebuildJournal();
+                deleteIfExists(cache.legacyJournalFile);
+                cache.startJournalThread();
+                return cache;
+            } catch (IOException journalIsCorrupt) {
+                cache.delete();
+            }
         }
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, durability);
         cache.rebuildJournal();
+        cache.startJournalThread();
         return cache;
     }
 
+    /**
+     * Replays the binary journal from a single read-only mapping of the file.
+     */
     private void readJournal() throws IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
+        FileInputStream in = new FileInputStream(journalFile);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < JOURNAL_HEADER_SIZE) {
+                throw new IOException("journal too short");
+            }
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            int appVersionNumber = buffer.getInt();
+            int valueCountNumber = buffer.getInt();
+            if (magic != BINARY_MAGIC
+                    || version != VERSION_2
+                    || appVersionNumber != appVersion
+                    || valueCountNumber != valueCount) {
+                throw new IOException("unexpected journal header: ["
+                        + magic + ", " + version + ", " + appVersionNumber + ", "
+                        + valueCountNumber + "]");
+            }
+
+            Map<Long, Entry> entriesByHash = new HashMap<Long, Entry>();
+            Set<Long> collidedHashes = new HashSet<Long>();
+            long maxSequenceNumber = -1;
+            while (buffer.hasRemaining()) {
+                if (!readJournalRecord(buffer, entriesByHash, collidedHashes)) {
+                    journalTruncated = true;
+                    break;
+                }
+            }
+            for (Entry entry : lruEntries.values()) {
+                maxSequenceNumber = Math.max(maxSequenceNumber, entry.sequenceNumber);
+            }
+            nextSequenceNumber.set(maxSequenceNumber + 1);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Applies the record at the buffer's position.
+     *
+     * <p>Keyed records are matched to an entry by hash and then by key bytes.
+     * If two keys share a hash, the READ and REMOVE records that follow can't
+     * be told apart, so both entries are dropped and every later record for
+     * that hash is ignored. A collision costs those entries, never the wrong
+     * files.
+     *
+     * @param collidedHashes hashes seen with more than one key
+     * @return false if the buffer ends before the record does
+     */
+    private boolean readJournalRecord(ByteBuffer buffer, Map<Long, Entry> entriesByHash,
+            Set<Long> collidedHashes) throws IOException {
+        if (buffer.remaining() < RECORD_HEADER_SIZE) {
+            return false;
+        }
+        byte op = buffer.get();
+        long keyHash = buffer.getLong();
+        switch (op) {
+            case OP_READ: {
+                Entry entry = entriesByHash.get(keyHash);
+                if (entry != null) {
+                    entry.lastAccess = accessCounter.incrementAndGet();
+                }
+                return true;
+            }
+            case OP_REMOVE: {
+                Entry entry = entriesByHash.remove(keyHash);
+                if (entry != null) {
+                    lruEntries.remove(entry.key);
+                }
+                return true;
+            }
+            case OP_DIRTY:
+            case OP_CLEAN: {
+                int tail = op == OP_CLEAN ? 8 + 8 * valueCount : 0;
+                if (buffer.remaining() < 2) {
+                    return false;
+                }
+                int keyLength = buffer.getShort() & 0xffff;
+                if (buffer.remaining() < keyLength + tail) {
+                    return false;
+                }
+                if (collidedHashes.contains(keyHash)) {
+                    dropRecordKey(buffer, keyLength);
+                    buffer.position(buffer.position() + tail);
+                    return true;
+                }
+                Entry entry = entriesByHash.get(keyHash);
+                if (entry != null && !keyEquals(buffer, keyLength, entry.keyBytes)) {
+                    collidedHashes.add(keyHash);
+                    entriesByHash.remove(keyHash);
+                    lruEntries.remove(entry.key);
+                    deleteEntryFiles(entry.key);
+                    dropRecordKey(buffer, keyLength);
+                    buffer.position(buffer.position() + tail);
+                    return true;
+                }
+                if (entry == null) {
+                    byte[] keyBytes = new byte[keyLength];
+                    buffer.get(keyBytes);
+                    String key = new String(keyBytes, UTF_8);
+                    entry = lruEntries.get(key);
+                    if (entry == null) {
+                        entry = new Entry(key);
+                        lruEntries.put(key, entry);
+                    }
+                    entriesByHash.put(keyHash, entry);
+                } else {
+                    buffer.position(buffer.position() + keyLength);
+                }
+                entry.lastAccess = accessCounter.incrementAndGet();
+                if (op == OP_CLEAN) {
+                    entry.sequenceNumber = buffer.getLong();
+                    for (int i = 0; i < valueCount; i++) {
+                        entry.lengths[i] = buffer.getLong();
+                    }
+                    entry.readable = true;
+                    entry.currentEditor = null;
+                } else {
+                    entry.currentEditor = new Editor(entry);
+                }
+                return true;
+            }
+            default:
+                throw new IOException("unexpected journal record: " + op);
+        }
+    }
+
+    /**
+     * Returns true if the {@code length} bytes at the buffer's position are
+     * {@code keyBytes}. Doesn't move the position.
+     */
+    private static boolean keyEquals(ByteBuffer buffer, int length, byte[] keyBytes) {
+        if (length != keyBytes.length) {
+            return false;
+        }
+        int position = buffer.position();
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(position + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Consumes the key of a record that is being dropped and deletes the
+     * key's value files, clean and dirty.
+     */
+    private void dropRecordKey(ByteBuffer buffer, int keyLength) {
+        byte[] keyBytes = new byte[keyLength];
+        buffer.get(keyBytes);
+        String key = new String(keyBytes, UTF_8);
+        lruEntries.remove(key);
+        deleteEntryFiles(key);
+    }
+
+    private void deleteEntryFiles(String key) {
+        for (int i = 0; i < valueCount; i++) {
+            new File(directory, key + "." + i).delete();
+            new File(directory, key + "." + i + ".tmp").delete();
+        }
+    }
+
+    /**
+     * Replays a text journal written by an earlier version.
+     */
+    private void readLegacyJournal() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(legacyJournalFile), IO_BUFFER_SIZE);
         try {
             String magic = readAsciiLine(in);
             String version = readAsciiLine(in);
@@ -355,7 +659,7 @@ import java.util.concurrent.TimeUnit;
 
             while (true) {
                 try {
-                    readJournalLine(readAsciiLine(in));
+                    readLegacyJournalLine(readAsciiLine(in));
                 } catch (EOFException endOfJournal) {
                     break;
                 }
@@ -365,7 +669,7 @@ import java.util.concurrent.TimeUnit;
         }
     }
 
-    private void readJournalLine(String line) throws IOException {
+    private void readLegacyJournalLine(String line) throws IOException {
         String[] parts = line.split(" ");
         if (parts.length < 2) {
             throw new IOException("unexpected journal line: " + line);
@@ -382,6 +686,7 @@ import java.util.concurrent.TimeUnit;
             entry = new Entry(key);
             lruEntries.put(key, entry);
         }
+        entry.lastAccess = accessCounter.incrementAndGet();
 
         if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
             entry.readable = true;
@@ -390,7 +695,7 @@ import java.util.concurrent.TimeUnit;
         } else if (parts[0].equals(DIRTY) && parts.length == 2) {
             entry.currentEditor = new Editor(entry);
         } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
+            // this work was already done by updating lastAccess
         } else {
             throw new IOException("unexpected journal line: " + line);
         }
@@ -406,7 +711,7 @@ import java.util.concurrent.TimeUnit;
             Entry entry = i.next();
             if (entry.currentEditor == null) {
                 for (int t = 0; t < valueCount; t++) {
-                    size += entry.lengths[t];
+                    size.addAndGet(entry.lengths[t]);
                 }
             } else {
                 entry.currentEditor = null;
@@ -422,34 +727,249 @@ import java.util.concurrent.TimeUnit;
     /**
      * Creates a new journal that omits redundant information. This replaces the
      * current journal if it exists.
+     *
+     * <p>The journal lock is only held to start and to finish the rewrite, so
+     * the writer thread keeps appending to the old journal meanwhile. Every
+     * record it writes after the rewrite starts is also kept in
+     * {@link #compactionBacklog} and appended to the new journal just before
+     * it replaces the old one. Entry state is read after the backlog is
+     * installed and without taking entry locks; a racing operation's record
+     * is always in the backlog, so the replay still ends in the right state.
      */
-    private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            journalWriter.close();
+    private void rebuildJournal() throws IOException {
+        synchronized (journalLock) {
+            if (journalThread != null && journalWriter == null) {
+                return; // closed
+            }
+            if (compactionBacklog != null) {
+                return; // already rebuilding
+            }
+            compactionBacklog = new ArrayList<byte[]>();
         }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
+        OutputStream writer = null;
+        try {
+            writer = new BufferedOutputStream(new FileOutputStream(journalFileTmp), IO_BUFFER_SIZE);
+            ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+            header.putInt(BINARY_MAGIC).putInt(VERSION_2).putInt(appVersion).putInt(valueCount);
+            writer.write(header.array());
+
+            List<Entry> entries = new ArrayList<Entry>(lruEntries.values());
+            Collections.sort(entries, LEAST_RECENTLY_USED_FIRST);
+            for (Entry entry : entries) {
+                if (entry.currentEditor != null) {
+                    writer.write(dirtyRecord(entry));
+                } else if (entry.readable) {
+                    writer.write(cleanRecord(entry));
+                }
+            }
+            writer.flush();
 
-        for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            synchronized (journalLock) {
+                if (journalThread != null && journalWriter == null) {
+                    return; // closed while rebuilding
+                }
+                for (byte[] record : compactionBacklog) {
+                    writer.write(record);
+                }
+                writer.close();
+                writer = null;
+                if (journalWriter != null) {
+                    journalWriter.close();
+                }
+                journalFileTmp.renameTo(journalFile);
+                journalWriter = new BufferedOutputStream(
+                        new FileOutputStream(journalFile, true), IO_BUFFER_SIZE);
+            }
+        } finally {
+            synchronized (journalLock) {
+                compactionBacklog = null;
+            }
+            if (writer != null) {
+                closeQuietly(writer);
+                deleteIfExists(journalFileTmp);
+            }
+        }
+    }
+
+    private byte[] cleanRecord(Entry entry) {
+        ByteBuffer record = keyedRecord(OP_CLEAN, entry, 8 + 8 * valueCount);
+        record.putLong(entry.sequenceNumber);
+        for (long length : entry.lengths) {
+            record.putLong(length);
+        }
+        return record.array();
+    }
+
+    private byte[] dirtyRecord(Entry entry) {
+        return keyedRecord(OP_DIRTY, entry, 0).array();
+    }
+
+    private static byte[] hashRecord(byte op, Entry entry) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        record.put(op).putLong(entry.keyHash);
+        return record.array();
+    }
+
+    private static ByteBuffer keyedRecord(byte op, Entry entry, int tail) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + 2 + entry.keyBytes.length + tail);
+        record.put(op).putLong(entry.keyHash);
+        record.putShort((short) entry.keyBytes.length).put(entry.keyBytes);
+        return record;
+    }
+
+    /**
+     * 64-bit FNV-1a over the key's UTF-8 bytes.
+     */
+    static long hashKey(byte[] keyBytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : keyBytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Queues {@code bytes} for the journal writer thread.
+     *
+     * @param sync true to block until the record has been flushed to the filesystem
+     */
+    private void writeJournal(byte[] bytes, boolean sync) throws IOException {
+        awaitJournalCommit(queueJournal(bytes, sync));
+    }
+
+    /**
+     * Queues {@code bytes} for the journal writer thread without waiting. Entry
+     * locks queue their records through this and call
+     * {@link #awaitJournalCommit} only after releasing the lock, so a reader of
+     * the same key never waits for a flush.
+     *
+     * @param sync true if the record must be flushed before the operation returns
+     */
+    private JournalRecord queueJournal(byte[] bytes, boolean sync) {
+        checkNotClosed();
+        JournalRecord record = new JournalRecord(bytes, sync);
+        journalQueue.offer(record);
+        if (sync && journalThreadParked) {
+            LockSupport.unpark(journalThread);
+        }
+        return record;
+    }
+
+    /**
+     * Whether CLEAN and REMOVE records must wait for their flush.
+     */
+    private boolean syncEachOp() {
+        return durability == Durability.PER_OP;
+    }
+
+    /**
+     * Blocks until a record queued with {@code sync} has been flushed. Returns
+     * immediately for other records.
+     */
+    private void awaitJournalCommit(JournalRecord record) throws IOException {
+        if (!record.sync) {
+            return;
+        }
+        synchronized (record) {
+            while (!record.committed) {
+                if (!journalThread.isAlive()) {
+                    throw new IllegalStateException("cache is closed");
+                }
+                try {
+                    record.wait(JOURNAL_WRITE_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
             }
         }
+        if (record.error != null) {
+            throw new IOException("journal write failed", record.error);
+        }
+    }
 
-        writer.close();
-        journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+    private void startJournalThread() {
+        journalThread = new Thread(new Runnable() {
+            @Override public void run() {
+                runJournalWriter();
+            }
+        }, "DiskLruCache-journal");
+        journalThread.setDaemon(true);
+        journalThread.start();
+    }
+
+    /**
+     * Body of the journal writer thread. Every pass drains all queued records
+     * into the buffered writer with a single lock acquisition and flushes once
+     * if any of them, or the durability mode, asks for it.
+     */
+    private void runJournalWriter() {
+        List<JournalRecord> batch = new ArrayList<JournalRecord>();
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(JOURNAL_WRITE_INTERVAL_MILLIS);
+        long lastFlush = System.nanoTime();
+        boolean unflushed = false;
+        while (true) {
+            // read before draining so that every record queued before close() is written
+            boolean stopping = closed;
+            JournalRecord record;
+            while ((record = journalQueue.poll()) != null) {
+                batch.add(record);
+            }
+
+            boolean flush = stopping;
+            for (JournalRecord r : batch) {
+                flush |= r.sync;
+            }
+            unflushed |= !batch.isEmpty();
+            if (durability == Durability.PERIODIC && unflushed
+                    && System.nanoTime() - lastFlush >= intervalNanos) {
+                flush = true;
+            }
+
+            IOException error = null;
+            synchronized (journalLock) {
+                try {
+                    for (JournalRecord r : batch) {
+                        journalWriter.write(r.bytes);
+                        if (compactionBacklog != null) {
+                            compactionBacklog.add(r.bytes);
+                        }
+                    }
+                    if (flush) {
+                        journalWriter.flush();
+                        lastFlush = System.nanoTime();
+                        unflushed = false;
+                    }
+                    if (stopping) {
+                        journalWriter.close();
+                        journalWriter = null;
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            for (JournalRecord r : batch) {
+                if (r.sync) {
+                    synchronized (r) {
+                        r.error = error;
+                        r.committed = true;
+                        r.notifyAll();
+                    }
+                }
+            }
+            batch.clear();
+            if (stopping) {
+                return;
+            }
+
+            journalThreadParked = true;
+            if (journalQueue.isEmpty() && !closed) {
+                LockSupport.parkNanos(this, intervalNanos);
+            }
+            journalThreadParked = false;
+        }
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -470,7 +990,7 @@ import java.util.concurrent.TimeUnit;
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
@@ -478,32 +998,42 @@ import java.util.concurrent.TimeUnit;
             return null;
         }
 
-        if (!entry.readable) {
-            return null;
-        }
-
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
         InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+        long[] lengths;
+        long sequenceNumber;
+        synchronized (entry) {
+            if (!entry.readable || entry.removed) {
+                return null;
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
+
+            /*
+             * Open all streams eagerly to guarantee that we see a single published
+             * snapshot. If we opened streams lazily then the streams could come
+             * from different edits.
+             */
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = new FileInputStream(entry.getCleanFile(i));
+                }
+            } catch (FileNotFoundException e) {
+                // a file must have been deleted manually!
+                for (InputStream in : ins) {
+                    closeQuietly(in);
+                }
+                return null;
+            }
+            sequenceNumber = entry.sequenceNumber;
+            lengths = entry.lengths.clone();
+            entry.lastAccess = accessCounter.incrementAndGet();
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
+        redundantOpCount.incrementAndGet();
+        writeJournal(hashRecord(OP_READ, entry), false);
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return new Snapshot(key, sequenceNumber, ins, lengths);
     }
 
     /**
@@ -514,28 +1044,74 @@ import java.util.concurrent.TimeUnit;
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
-        }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
-        }
+        while (true) {
+            Editor editor;
+            JournalRecord dirty;
+            Entry entry = lruEntries.get(key);
+            if (entry == null) {
+                if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER) {
+                    return null; // snapshot is stale
+                }
+                Entry created = new Entry(key);
+                entry = lruEntries.putIfAbsent(key, created);
+                if (entry == null) {
+                    entry = created;
+                }
+            }
+
+            synchronized (entry) {
+                if (entry.removed) {
+                    continue; // lost a race with remove(), retry with the new entry
+                }
+                if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                        && entry.sequenceNumber != expectedSequenceNumber) {
+                    return null; // snapshot is stale
+                }
+                if (entry.currentEditor != null) {
+                    return null; // another edit is in progress
+                }
 
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+                editor = new Editor(entry);
+                entry.currentEditor = editor;
+                dirty = queueJournal(dirtyRecord(entry), true);
+            }
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
-        return editor;
+            // flush the journal before creating files to prevent file leaks
+            boolean flushed = false;
+            try {
+                awaitJournalCommit(dirty);
+                flushed = true;
+            } finally {
+                if (!flushed) {
+                    abandonEdit(editor);
+                }
+            }
+            return editor;
+        }
+    }
+
+    /**
+     * Releases the edit lock of an editor that was never handed out because its
+     * DIRTY record couldn't be flushed, so the key can be edited again.
+     */
+    private void abandonEdit(Editor editor) {
+        Entry entry = editor.entry;
+        synchronized (entry) {
+            if (entry.currentEditor != editor) {
+                return;
+            }
+            entry.currentEditor = null;
+            for (int i = 0; i < valueCount; i++) {
+                entry.getDirtyFile(i).delete();
+            }
+            if (!entry.readable) {
+                entry.removed = true;
+                lruEntries.remove(entry.key, entry);
+            }
+        }
     }
 
     /**
@@ -558,56 +1134,62 @@ import java.util.concurrent.TimeUnit;
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
-        return size;
+    public long size() {
+        return size.get();
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+    private void completeEdit(Editor editor, boolean success) throws IOException {
         Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new IllegalStateException();
-        }
+        JournalRecord record;
+        synchronized (entry) {
+            if (entry.currentEditor != editor) {
+                throw new IllegalStateException();
+            }
 
-        // if this edit is creating the entry for the first time, every index must have a value
-        if (success && !entry.readable) {
-            for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
-                    editor.abort();
-                    throw new IllegalStateException("edit didn't create file " + i);
+            // if this edit is creating the entry for the first time, every index must have a value
+            if (success && !entry.readable) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (!entry.getDirtyFile(i).exists()) {
+                        editor.abort();
+                        throw new IllegalStateException("edit didn't create file " + i);
+                    }
                 }
             }
-        }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        long oldLength = entry.lengths[i];
+                        long newLength = clean.length();
+                        entry.lengths[i] = newLength;
+                        size.addAndGet(newLength - oldLength);
+                    }
+                } else {
+                    deleteIfExists(dirty);
                 }
-            } else {
-                deleteIfExists(dirty);
             }
-        }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+            redundantOpCount.incrementAndGet();
+            entry.currentEditor = null;
+            if (entry.readable | success) {
+                entry.readable = true;
+                entry.lastAccess = accessCounter.incrementAndGet();
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
+                }
+                record = queueJournal(cleanRecord(entry), syncEachOp());
+            } else {
+                entry.removed = true;
+                lruEntries.remove(entry.key, entry);
+                record = queueJournal(hashRecord(OP_REMOVE, entry), syncEachOp());
             }
-        } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
         }
+        awaitJournalCommit(record);
 
-        if (size > maxSize || journalRebuildRequired()) {
+        if (size.get() > maxSize || journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
     }
@@ -618,8 +1200,9 @@ import java.util.concurrent.TimeUnit;
      */
     private boolean journalRebuildRequired() {
         final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-                && redundantOpCount >= lruEntries.size();
+        int redundantOps = redundantOpCount.get();
+        return redundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOps >= lruEntries.size();
     }
 
     /**
@@ -628,26 +1211,35 @@ import java.util.concurrent.TimeUnit;
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
+    public boolean remove(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
+        if (entry == null) {
             return false;
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+        JournalRecord record;
+        synchronized (entry) {
+            if (entry.removed || entry.currentEditor != null) {
+                return false;
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
-        }
 
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
+            for (int i = 0; i < valueCount; i++) {
+                File file = entry.getCleanFile(i);
+                if (!file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
+                size.addAndGet(-entry.lengths[i]);
+                entry.lengths[i] = 0;
+            }
+
+            redundantOpCount.incrementAndGet();
+            entry.removed = true;
+            lruEntries.remove(key, entry);
+            record = queueJournal(hashRecord(OP_REMOVE, entry), syncEachOp());
+        }
+        awaitJournalCommit(record);
 
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -656,50 +1248,86 @@ import java.util.concurrent.TimeUnit;
         return true;
     }
 
+    /**
+     * Returns the keys of the entries that are currently readable. The set is a
+     * copy; entries added or removed afterwards are not reflected in it.
+     */
+    public Set<String> keys() {
+        checkNotClosed();
+        Set<String> keys = new HashSet<String>();
+        for (Entry entry : lruEntries.values()) {
+            if (entry.readable) {
+                keys.add(entry.key);
+            }
+        }
+        return keys;
+    }
+
     /**
      * Returns true if this cache has been closed.
      */
     public boolean isClosed() {
-        return journalWriter == null;
+        return closed || journalThread == null;
     }
 
     private void checkNotClosed() {
-        if (journalWriter == null) {
+        if (isClosed()) {
             throw new IllegalStateException("cache is closed");
         }
     }
 
     /**
-     * Force buffered operations to the filesystem.
+     * Force buffered operations to the filesystem. Blocks until every journal
+     * record queued before this call has been flushed.
      */
-    public synchronized void flush() throws IOException {
+    public void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        writeJournal(new byte[0], true);
     }
 
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
-    public synchronized void close() throws IOException {
-        if (journalWriter == null) {
+    public void close() throws IOException {
+        if (isClosed()) {
             return; // already closed
         }
         for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
+            synchronized (entry) {
+                if (entry.currentEditor != null) {
+                    entry.currentEditor.abort();
+                }
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        // the writer thread flushes and closes the journal once it sees the flag
+        closed = true;
+        LockSupport.unpark(journalThread);
+        try {
+            journalThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
+    /**
+     * Evicts least recently used entries until the cache fits in
+     * {@link #maxSize}. Entries that are being edited are skipped.
+     */
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        if (size.get() <= maxSize) {
+            return;
+        }
+        List<Entry> entries = new ArrayList<Entry>(lruEntries.values());
+        Collections.sort(entries, LEAST_RECENTLY_USED_FIRST);
+        for (Entry entry : entries) {
+            if (size.get() <= maxSize) {
+                return;
+            }
+            if (entry.readable && entry.currentEditor == null) {
+                remove(entry.key);
+            }
         }
     }
 
@@ -718,6 +1346,9 @@ import java.util.concurrent.TimeUnit;
             throw new IllegalArgumentException(
                     "keys must not contain spaces or newlines: \"" + key + "\"");
         }
+        if (key.length() > 0xffff / 3) {
+            throw new IllegalArgumentException("key is too long: \"" + key + "\"");
+        }
     }
 
     private static String inputStreamToString(InputStream in) throws IOException {
@@ -725,17 +1356,22 @@ import java.util.concurrent.TimeUnit;
     }
 
     /**
-     * A snapshot of the values for an entry.
+     * A snapshot of the values for an entry. The values can be read as
+     * streams, as channels, or mapped into memory without copying. Every view
+     * shares the snapshot's file handles, so callers must close the snapshot
+     * once they are done with it.
      */
     public final class Snapshot implements Closeable {
         private final String key;
         private final long sequenceNumber;
         private final InputStream[] ins;
+        private final long[] lengths;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
+            this.lengths = lengths;
         }
 
         /**
@@ -761,6 +1397,41 @@ import java.util.concurrent.TimeUnit;
             return inputStreamToString(getInputStream(index));
         }
 
+        /**
+         * Returns the length in bytes of the value for {@code index}.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
+        /**
+         * Returns the file holding the value for {@code index}, for APIs that
+         * only accept a path. A later edit may replace the file, so prefer
+         * the stream or channel of this snapshot when possible.
+         */
+        public File getFile(int index) {
+            return new File(directory, key + "." + index);
+        }
+
+        /**
+         * Returns the channel of the value for {@code index}. It shares its
+         * position with {@link #getInputStream} and is closed with this
+         * snapshot.
+         */
+        public FileChannel getChannel(int index) {
+            return ((FileInputStream) ins[index]).getChannel();
+        }
+
+        /**
+         * Maps the value for {@code index} read-only into memory. The mapping
+         * is a stable view of this snapshot's value; it stays readable after
+         * the snapshot is closed, until it is garbage collected.
+         */
+        public MappedByteBuffer map(int index) throws IOException {
+            FileChannel channel = getChannel(index);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
         @Override public void close() {
             for (InputStream in : ins) {
                 closeQuietly(in);
@@ -784,7 +1455,7 @@ import java.util.concurrent.TimeUnit;
          * or null if no value has been committed.
          */
         public InputStream newInputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
+            synchronized (entry) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
@@ -804,6 +1475,33 @@ import java.util.concurrent.TimeUnit;
             return in != null ? inputStreamToString(in) : null;
         }
 
+        /**
+         * Returns an unbuffered input stream to read the value written by this
+         * edit at {@code index}, or null if no value has been written yet.
+         * Callers must close the stream before committing.
+         */
+        public InputStream newDirtyInputStream(int index) throws IOException {
+            synchronized (entry) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                File dirty = entry.getDirtyFile(index);
+                if (!dirty.exists()) {
+                    return null;
+                }
+                return new FileInputStream(dirty);
+            }
+        }
+
+        /**
+         * Returns the file this edit writes the value for {@code index} to, for
+         * APIs that only accept a path. It holds only the bytes written so far
+         * and is renamed or deleted when this edit completes.
+         */
+        public File getDirtyFile(int index) {
+            return entry.getDirtyFile(index);
+        }
+
         /**
          * Returns a new unbuffered output stream to write the value at
          * {@code index}. If the underlying output stream encounters errors
@@ -812,7 +1510,7 @@ import java.util.concurrent.TimeUnit;
          * IOExceptions.
          */
         public OutputStream newOutputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
+            synchronized (entry) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
@@ -893,34 +1591,55 @@ import java.util.concurrent.TimeUnit;
         }
     }
 
+    /**
+     * An encoded journal record queued for the writer thread. Sync records are
+     * the monitor their caller waits on until the record has been flushed.
+     */
+    private static final class JournalRecord {
+        final byte[] bytes;
+        final boolean sync;
+        boolean committed;
+        IOException error;
+
+        JournalRecord(byte[] bytes, boolean sync) {
+            this.bytes = bytes;
+            this.sync = sync;
+        }
+    }
+
+    /**
+     * Each entry is the monitor that guards its own mutable state.
+     */
     private final class Entry {
         private final String key;
+        private final byte[] keyBytes;
+        private final long keyHash;
 
         /** Lengths of this entry's files. */
         private final long[] lengths;
 
         /** True if this entry has ever been published */
-        private boolean readable;
+        private volatile boolean readable;
 
         /** The ongoing edit or null if this entry is not being edited. */
-        private Editor currentEditor;
+        private volatile Editor currentEditor;
 
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
+        /** True once this entry has been dropped from {@link #lruEntries}. */
+        private boolean removed;
+
+        /** Access stamp from {@link #accessCounter}, used for LRU eviction. */
+        private volatile long lastAccess;
+
         private Entry(String key) {
             this.key = key;
+            this.keyBytes = key.getBytes(UTF_8);
+            this.keyHash = hashKey(keyBytes);
             this.lengths = new long[valueCount];
         }
 
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
-            }
-            return result.toString();
-        }
-
         /**
          * Set lengths using decimal numbers like "10123".
          */
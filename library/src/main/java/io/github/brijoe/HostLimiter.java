@@ -0,0 +1,113 @@
+package io.github.brijoe;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * 限制同一个主机同时下载的任务数
+ * <p/>
+ * 超出上限的任务按优先级在主机各自的队列中等待，不占用网络线程，空出的线程继续执行其他主机的任务，
+ * 一个慢主机不会占满所有网络线程。任务结束时名额直接交给同一主机队列中的下一个任务
+ */
+final class HostLimiter {
+
+    private static final class Host {
+        int active;
+        final PriorityQueue<LoadTask> waiting = new PriorityQueue<LoadTask>();
+    }
+
+    private final int mMaxPerHost;
+    private final Map<String, Host> mHosts = new HashMap<String, Host>();
+    /**
+     * 持有名额的任务 -> 主机
+     */
+    private final Map<LoadTask, String> mHolders = new HashMap<LoadTask, String>();
+
+    /**
+     * @param maxPerHost 每个主机同时下载的任务数
+     */
+    HostLimiter(int maxPerHost) {
+        mMaxPerHost = maxPerHost;
+    }
+
+    /**
+     * 为任务取得所在主机的一个名额，已经持有名额时直接返回true
+     *
+     * @param task
+     * @return 没有空闲名额时任务进入主机队列，返回false，之后由 {@link #release} 交出
+     */
+    synchronized boolean tryAcquire(LoadTask task) {
+        if (mHolders.containsKey(task)) {
+            return true;
+        }
+        String name = hostOf(task.uri);
+        Host host = mHosts.get(name);
+        if (host == null) {
+            host = new Host();
+            mHosts.put(name, host);
+        }
+        if (host.active < mMaxPerHost) {
+            host.active++;
+            mHolders.put(task, name);
+            return true;
+        }
+        host.waiting.add(task);
+        return false;
+    }
+
+    /**
+     * 释放任务持有的名额，没有持有名额时什么也不做
+     *
+     * @param task
+     * @return 接手名额的等待任务，调用方负责重新提交；没有等待任务时返回null
+     */
+    synchronized LoadTask release(LoadTask task) {
+        String name = mHolders.remove(task);
+        if (name == null) {
+            return null;
+        }
+        Host host = mHosts.get(name);
+        LoadTask next;
+        while ((next = host.waiting.poll()) != null) {
+            //等待期间被取消的任务直接结束，它已经不在在途任务表中
+            if (!next.isCancelled()) {
+                mHolders.put(next, name);
+                return next;
+            }
+            next.releaseSnapshot();
+            next.complete();
+        }
+        if (--host.active == 0) {
+            mHosts.remove(name);
+        }
+        return null;
+    }
+
+    /**
+     * 将等待名额的任务移出主机队列，用于取消请求
+     *
+     * @param task
+     * @return 任务在主机队列中等待时返回true，调用方负责结束任务
+     */
+    synchronized boolean remove(LoadTask task) {
+        String name = hostOf(task.uri);
+        Host host = mHosts.get(name);
+        return host != null && host.waiting.remove(task);
+    }
+
+    /**
+     * @param uri
+     * @return 主机名和端口，无法解析时返回空字符串
+     */
+    static String hostOf(String uri) {
+        try {
+            URL url = new URL(uri);
+            return url.getHost() + ":" + url.getPort();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+}
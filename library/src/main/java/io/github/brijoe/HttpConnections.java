@@ -0,0 +1,95 @@
+package io.github.brijoe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * HttpURLConnection 的打开和释放
+ * <p/>
+ * HttpURLConnection 自带 keep-alive 连接池：响应体读完并关闭输入流、且不调用 disconnect() 时，
+ * 连接回到连接池，同一主机的下一个请求不需要再做 TCP/TLS 握手。
+ * 因此释放时尽量把响应体读完，只有连接状态未知或剩余数据太多时才断开
+ */
+final class HttpConnections {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+    /**
+     * 释放时最多读取的剩余数据，超过时断开连接比读完更省
+     */
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private HttpConnections() {
+    }
+
+    /**
+     * @param urlString
+     * @return 尚未连接的 HttpURLConnection
+     * @throws IOException
+     */
+    static HttpURLConnection open(String urlString) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        return connection;
+    }
+
+    /**
+     * 读完剩余的响应体后关闭，连接放回连接池；剩余数据太多或读取出错时断开连接
+     *
+     * @param connection maybe null.
+     * @param in         响应体或错误流，为null 时读取连接的错误流
+     * @param buffer     读取剩余数据用的缓冲区
+     */
+    static void release(HttpURLConnection connection, InputStream in, byte[] buffer) {
+        if (connection == null) {
+            DiskLruCache.closeQuietly(in);
+            return;
+        }
+        if (in == null) {
+            in = connection.getErrorStream();
+        }
+        boolean reusable = in != null && drain(in, buffer);
+        //先断开再关闭：有的实现在关闭输入流时会自己读完剩余数据，把连接放回连接池
+        if (!reusable) {
+            connection.disconnect();
+        }
+        DiskLruCache.closeQuietly(in);
+    }
+
+    /**
+     * 连接状态未知时关闭并断开，不放回连接池
+     *
+     * @param connection maybe null.
+     * @param in         maybe null.
+     */
+    static void abort(HttpURLConnection connection, InputStream in) {
+        if (connection != null) {
+            connection.disconnect();
+        }
+        DiskLruCache.closeQuietly(in);
+    }
+
+    /**
+     * @param in
+     * @param buffer
+     * @return 是否在 {@link #MAX_DRAIN_BYTES} 以内读到了末尾
+     */
+    private static boolean drain(InputStream in, byte[] buffer) {
+        try {
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                total += count;
+                if (total > MAX_DRAIN_BYTES) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.brijoe;
+
+/**
+ * 图片元数据，与图片数据一起保存在磁盘缓存条目中，解码时不需要再做一次 inJustDecodeBounds
+ * <p/>
+ * 存储格式为一行以空格分隔的文本：width height mimeType
+ */
+final class ImageMetadata {
+
+    private static final String UNKNOWN_MIME_TYPE = "-";
+
+    final int width;
+    final int height;
+    /**
+     * 可能为null
+     */
+    final String mimeType;
+
+    ImageMetadata(int width, int height, String mimeType) {
+        this.width = width;
+        this.height = height;
+        this.mimeType = mimeType;
+    }
+
+    String encode() {
+        return width + " " + height + " " + (mimeType != null ? mimeType : UNKNOWN_MIME_TYPE);
+    }
+
+    /**
+     * @param value
+     * @return 格式不正确时返回null
+     */
+    static ImageMetadata parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.trim().split(" ");
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            int width = Integer.parseInt(parts[0]);
+            int height = Integer.parseInt(parts[1]);
+            if (width <= 0 || height <= 0) {
+                return null;
+            }
+            String mimeType = UNKNOWN_MIME_TYPE.equals(parts[2]) ? null : parts[2];
+            return new ImageMetadata(width, height, mimeType);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package io.github.brijoe;
 
+import android.annotation.TargetApi;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.os.Build;
 import android.util.Log;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.IOException;
 
 /**
  * 提供了图片压缩方法和从不同源中加载Bitmap的方法
@@ -13,7 +18,17 @@ import java.io.FileDescriptor;
 class ImageSampler {
     private static final String TAG = "ImageResizer";
 
+    /**
+     * 解码时复用的 Bitmap 池，可以为null
+     */
+    private final BitmapPool mBitmapPool;
+
     public ImageSampler() {
+        this(null);
+    }
+
+    public ImageSampler(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
     }
 
     /**
@@ -44,22 +59,177 @@ class ImageSampler {
      * @param fd
      * @param reqWidth
      * @param reqHeight
+     * @param config    解码配置
      * @return
      */
 
-    public Bitmap decodeSampleBitmapFromFileDescriptor(FileDescriptor fd, int reqWidth, int reqHeight) {
+    public Bitmap decodeSampleBitmapFromFileDescriptor(FileDescriptor fd, int reqWidth, int reqHeight, Bitmap.Config config) {
+        //First decode width inJustDecodeBounds=true to check dimensions
+        final BitmapFactory.Options options = decodeBoundsFromFileDescriptor(fd);
+        return decodeSampleBitmapFromFileDescriptor(fd, reqWidth, reqHeight, config, options.outWidth, options.outHeight);
+    }
+
+    /**
+     * 已知原图尺寸时，根据请求的bitmap 尺寸 从文件描述中一次解码载入bitmap，省去 inJustDecodeBounds 解析
+     *
+     * @param fd
+     * @param reqWidth
+     * @param reqHeight
+     * @param config    解码配置
+     * @param width     原图宽
+     * @param height    原图高
+     * @return
+     */
+    public Bitmap decodeSampleBitmapFromFileDescriptor(FileDescriptor fd, int reqWidth, int reqHeight, Bitmap.Config config,
+                                                       int width, int height) {
+        final BitmapFactory.Options options = createSampleOptions(reqWidth, reqHeight, config, width, height);
+        try {
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        } catch (IllegalArgumentException e) {
+            //inBitmap 不满足复用条件，归还后不复用重新解码
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            Log.w(TAG, "decode with inBitmap fail: " + e);
+            mBitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        }
+    }
+
+    /**
+     * 根据请求的bitmap 尺寸 从内存中的编码数据载入bitmap
+     *
+     * @param data      编码数据
+     * @param offset
+     * @param length
+     * @param reqWidth
+     * @param reqHeight
+     * @param config    解码配置
+     * @return 不是可解码的图片时返回null
+     */
+    public Bitmap decodeSampleBitmapFromByteArray(byte[] data, int offset, int length, int reqWidth, int reqHeight,
+                                                  Bitmap.Config config) {
         //First decode width inJustDecodeBounds=true to check dimensions
         final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFileDescriptor(fd, null, options);
-        //Calculate inSampleSize
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        return decodeSampleBitmapFromByteArray(data, offset, length, reqWidth, reqHeight, config,
+                options.outWidth, options.outHeight);
+    }
+
+    /**
+     * 已知原图尺寸时，根据请求的bitmap 尺寸 从内存中的编码数据一次解码载入bitmap
+     *
+     * @param data      编码数据
+     * @param offset
+     * @param length
+     * @param reqWidth
+     * @param reqHeight
+     * @param config    解码配置
+     * @param width     原图宽
+     * @param height    原图高
+     * @return
+     */
+    public Bitmap decodeSampleBitmapFromByteArray(byte[] data, int offset, int length, int reqWidth, int reqHeight,
+                                                  Bitmap.Config config, int width, int height) {
+        final BitmapFactory.Options options = createSampleOptions(reqWidth, reqHeight, config, width, height);
+        try {
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (IllegalArgumentException e) {
+            //inBitmap 不满足复用条件，归还后不复用重新解码
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            Log.w(TAG, "decode with inBitmap fail: " + e);
+            mBitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+    }
 
+    /**
+     * 解码JPEG 文件EXIF 中内嵌的缩略图，只读取文件头部，不解码原图
+     *
+     * @param file
+     * @param config 解码配置
+     * @return 没有内嵌缩略图时返回null
+     */
+    public Bitmap decodeExifThumbnail(File file, Bitmap.Config config) {
+        byte[] thumbnail;
+        try {
+            thumbnail = new ExifInterface(file.getAbsolutePath()).getThumbnail();
+        } catch (IOException e) {
+            Log.w(TAG, "read exif thumbnail fail: " + e);
+            return null;
+        }
+        if (thumbnail == null) {
+            return null;
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        return BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
+    }
+
+    /**
+     * 根据原图尺寸和请求尺寸生成解码参数，计算 inSampleSize 并设置 inBitmap
+     *
+     * @param reqWidth
+     * @param reqHeight
+     * @param config
+     * @param width     原图宽
+     * @param height    原图高
+     * @return
+     */
+    private BitmapFactory.Options createSampleOptions(int reqWidth, int reqHeight, Bitmap.Config config,
+                                                      int width, int height) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        options.outWidth = width;
+        options.outHeight = height;
+        //Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
         //Decode bitmap width inSampleSize set
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        addInBitmapOptions(options, config);
+        return options;
+    }
 
+    /**
+     * 只解析图片头，取得原图尺寸和 mimeType
+     *
+     * @param fd
+     * @return 解析失败时 outWidth 和 outHeight 为 -1
+     */
+    public BitmapFactory.Options decodeBoundsFromFileDescriptor(FileDescriptor fd) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFileDescriptor(fd, null, options);
+        return options;
+    }
 
+    /**
+     * 从 Bitmap 池中取出可复用的 Bitmap 设置到 inBitmap，解码结果设为可变以便之后放回池中
+     * KITKAT 之前要求宽高完全一致且 inSampleSize 为1
+     *
+     * @param options 已经完成 inJustDecodeBounds 和 inSampleSize 计算
+     * @param config
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void addInBitmapOptions(BitmapFactory.Options options, Bitmap.Config config) {
+        if (mBitmapPool == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        options.inMutable = true;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && options.inSampleSize != 1) {
+            return;
+        }
+        int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+        int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+        options.inBitmap = mBitmapPool.get(width, height, config);
     }
 
     /**
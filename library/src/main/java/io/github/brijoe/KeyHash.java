@@ -0,0 +1,147 @@
+package io.github.brijoe;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 由uri 生成缓存key 的哈希算法，两种算法都输出128位，key 为32位十六进制字符串
+ */
+public enum KeyHash {
+    /**
+     * MurmurHash3 x64 128位，非加密哈希，速度快，默认算法
+     */
+    MURMUR3_128 {
+        @Override
+        void hash(byte[] input, int length, byte[] out) {
+            final long c1 = 0x87c37b91114253d5L;
+            final long c2 = 0x4cf5ad432745937fL;
+            long h1 = 0;
+            long h2 = 0;
+            int blocks = length / 16;
+            for (int i = 0; i < blocks; i++) {
+                long k1 = getLongLittleEndian(input, i * 16);
+                long k2 = getLongLittleEndian(input, i * 16 + 8);
+                k1 *= c1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= c2;
+                h1 ^= k1;
+                h1 = Long.rotateLeft(h1, 27);
+                h1 += h2;
+                h1 = h1 * 5 + 0x52dce729;
+                k2 *= c2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= c1;
+                h2 ^= k2;
+                h2 = Long.rotateLeft(h2, 31);
+                h2 += h1;
+                h2 = h2 * 5 + 0x38495ab5;
+            }
+            //剩余不足16字节的部分
+            int tail = blocks * 16;
+            long k1 = 0;
+            long k2 = 0;
+            for (int i = (length & 15) - 1; i >= 8; i--) {
+                k2 ^= (long) (input[tail + i] & 0xff) << ((i - 8) * 8);
+            }
+            if ((length & 15) > 8) {
+                k2 *= c2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= c1;
+                h2 ^= k2;
+            }
+            for (int i = Math.min(length & 15, 8) - 1; i >= 0; i--) {
+                k1 ^= (long) (input[tail + i] & 0xff) << (i * 8);
+            }
+            if ((length & 15) > 0) {
+                k1 *= c1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= c2;
+                h1 ^= k1;
+            }
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix64(h1);
+            h2 = fmix64(h2);
+            h1 += h2;
+            h2 += h1;
+            putLongBigEndian(out, 0, h1);
+            putLongBigEndian(out, 8, h2);
+        }
+    },
+    /**
+     * MD5，与之前版本的磁盘缓存key 一致。
+     * 注意磁盘缓存条目的格式已经改变（增加了图片元数据和响应缓存信息），之前版本写入的磁盘缓存
+     * 在打开时会被清空，选择 MD5 并不能沿用这些缓存
+     */
+    MD5 {
+        /**
+         * MessageDigest 不是线程安全的，每个线程复用自己的实例
+         */
+        private final ThreadLocal<MessageDigest> mDigest = new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance("MD5");
+                } catch (NoSuchAlgorithmException e) {
+                    return null;
+                }
+            }
+        };
+
+        @Override
+        void hash(byte[] input, int length, byte[] out) {
+            MessageDigest digest = mDigest.get();
+            if (digest == null) {
+                MURMUR3_128.hash(input, length, out);
+                return;
+            }
+            digest.update(input, 0, length);
+            try {
+                digest.digest(out, 0, out.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * 哈希长度，字节
+     */
+    static final int HASH_SIZE = 16;
+
+    /**
+     * 计算 input 前 length 个字节的哈希，写入 out
+     *
+     * @param input
+     * @param length
+     * @param out    长度为 {@link #HASH_SIZE}
+     */
+    abstract void hash(byte[] input, int length, byte[] out);
+
+    private static long getLongLittleEndian(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 7; i >= 0; i--) {
+            result = (result << 8) | (bytes[offset + i] & 0xff);
+        }
+        return result;
+    }
+
+    private static void putLongBigEndian(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,129 @@
+package io.github.brijoe;
+
+import android.widget.AbsListView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 列表滚动时沿滚动方向预加载即将出现的若干项，滚动到可见时图片已经在缓存中
+ * <p/>
+ * 设置为 {@link AbsListView} 的 OnScrollListener，或在已有的 OnScrollListener 的
+ * {@link #onScroll} 中转调。已经预加载过的范围不会重复提交。
+ * {@link DLoader} 暂停期间不提交，停止滑动后按最后的滚动位置和方向补上
+ */
+public class ListPreloader implements AbsListView.OnScrollListener {
+
+    /**
+     * 提供列表项对应的图片uri
+     */
+    public interface UriProvider {
+        /**
+         * @param position
+         * @return 该项的图片uri，没有图片时返回null
+         */
+        String getUri(int position);
+    }
+
+    private final DLoader mLoader;
+    private final UriProvider mUriProvider;
+    private final int mReqWidth;
+    private final int mReqHeight;
+    private final int mMaxPreload;
+    private final PreloadLevel mLevel;
+
+    private int mLastFirstVisible = -1;
+    private int mLastVisibleCount;
+    private int mLastTotalCount;
+    private boolean mForward = true;
+    /**
+     * 已经预加载过的范围 [mPreloadStart, mPreloadEnd)
+     */
+    private int mPreloadStart = 0;
+    private int mPreloadEnd = 0;
+
+    /**
+     * @param loader
+     * @param uriProvider
+     * @param reqWidth    与 {@link DLoader#load} 的目标尺寸一致才能命中
+     * @param reqHeight
+     * @param maxPreload  滚动方向上预加载的项数
+     * @param level
+     */
+    public ListPreloader(DLoader loader, UriProvider uriProvider, int reqWidth, int reqHeight,
+                         int maxPreload, PreloadLevel level) {
+        if (loader == null || uriProvider == null || level == null)
+            throw new IllegalArgumentException("loader, uriProvider and level must not be null!");
+        mLoader = loader;
+        mUriProvider = uriProvider;
+        mReqWidth = reqWidth;
+        mReqHeight = reqHeight;
+        mMaxPreload = maxPreload;
+        mLevel = level;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (scrollState == SCROLL_STATE_IDLE && mLastFirstVisible != -1) {
+            preload();
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        //第一次回调没有方向，按向下滚动处理
+        if (mLastFirstVisible != -1 && firstVisibleItem != mLastFirstVisible) {
+            mForward = firstVisibleItem > mLastFirstVisible;
+        } else if (mLastFirstVisible != -1 && totalItemCount == mLastTotalCount) {
+            return;
+        }
+        mLastFirstVisible = firstVisibleItem;
+        mLastVisibleCount = visibleItemCount;
+        mLastTotalCount = totalItemCount;
+        preload();
+    }
+
+    private void preload() {
+        if (mLoader.isPaused()) {
+            return;
+        }
+        if (mForward) {
+            preload(mLastFirstVisible + mLastVisibleCount, mLastTotalCount, true);
+        } else {
+            preload(mLastFirstVisible, mLastTotalCount, false);
+        }
+    }
+
+    /**
+     * @param from          向下时为可见区域之后的第一项，向上时为第一个可见项
+     * @param totalItemCount
+     * @param forward       滚动方向
+     */
+    private void preload(int from, int totalItemCount, boolean forward) {
+        int start;
+        int end;
+        if (forward) {
+            start = Math.max(from, mPreloadEnd);
+            end = Math.min(totalItemCount, from + mMaxPreload);
+        } else {
+            start = Math.max(0, from - mMaxPreload);
+            end = Math.min(from, mPreloadStart);
+        }
+        if (start >= end) {
+            return;
+        }
+        //离可见区域近的先提交
+        List<String> uris = new ArrayList<String>(end - start);
+        for (int i = 0; i < end - start; i++) {
+            int position = forward ? start + i : end - 1 - i;
+            String uri = mUriProvider.getUri(position);
+            if (uri != null) {
+                uris.add(uri);
+            }
+        }
+        mLoader.preload(uris, mReqWidth, mReqHeight, mLevel);
+        //只记录最近一次预加载的范围，方向改变后重新预加载另一侧
+        mPreloadStart = forward ? from : start;
+        mPreloadEnd = forward ? end : from;
+    }
+}
@@ -0,0 +1,189 @@
+package io.github.brijoe;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一次图片加载任务，同一个 缓存key + 目标尺寸 在同一时刻只会存在一个任务，
+ * 后续的请求直接挂载到正在执行的任务上，加载完成后结果分发给所有等待的 ImageView
+ * <p/>
+ * 任务依次经过 磁盘 -> 网络 -> 解码 三个阶段，每个阶段在各自的线程池中执行，
+ * 阶段之间通过重新提交任务交接，不会有一个线程从头持有到尾
+ */
+final class LoadTask extends PriorityTask {
+
+    /**
+     * 磁盘阶段：复查内存缓存，查找磁盘缓存条目
+     */
+    static final int STAGE_DISK = 0;
+    /**
+     * 网络阶段：下载并写入磁盘缓存
+     */
+    static final int STAGE_NETWORK = 1;
+    /**
+     * 解码阶段：从磁盘缓存条目解码 Bitmap
+     */
+    static final int STAGE_DECODE = 2;
+
+    /**
+     * 在途请求表的key，即内存缓存key：缓存key + 目标尺寸 + 解码配置
+     */
+    final String taskKey;
+    /**
+     * 磁盘缓存key，提交请求时计算一次，之后各阶段直接使用
+     */
+    final String diskKey;
+    final String uri;
+    final int reqWidth;
+    final int reqHeight;
+    final Bitmap.Config config;
+
+    private final DLoader mLoader;
+    /**
+     * 等待该任务结果的请求
+     */
+    private final List<RequestHandle> mTargets = new ArrayList<RequestHandle>();
+    /**
+     * 所有请求都被取消后置为true，执行中的下载和解码会在检查点停止
+     */
+    private volatile boolean mCancelled = false;
+    /**
+     * 只预加载到磁盘缓存、不需要解码，有请求挂载后清除，只在持有在途任务表锁时读写
+     */
+    boolean diskOnly;
+    /**
+     * 当前所处阶段
+     */
+    volatile int stage = STAGE_DISK;
+    /**
+     * 磁盘或网络阶段打开的缓存条目，交给解码阶段使用
+     */
+    private DiskLruCache.Snapshot mSnapshot;
+    /**
+     * 缓存条目是否来自缩放变体磁盘缓存
+     */
+    private boolean mResizedSnapshot;
+    /**
+     * 解码阶段读到的缓存条目元数据，可能为null
+     */
+    volatile ImageMetadata snapshotMetadata;
+    /**
+     * 缓存条目对应原图的缓存信息，用于判断新鲜度，也复制到由此生成的缩放变体中，可能为null
+     */
+    volatile CacheHeaders snapshotHeaders;
+    /**
+     * 磁盘缓存条目过期时保存的缓存信息，网络阶段据此发送条件请求，可能为null
+     */
+    volatile CacheHeaders validators;
+    /**
+     * 不允许保存（no-store）的响应在网络阶段直接解码得到的 Bitmap，不经过磁盘缓存，可能为null
+     */
+    volatile Bitmap uncachedBitmap;
+    /**
+     * 任务是否已经结束
+     */
+    private boolean mCompleted;
+
+    LoadTask(DLoader loader, String taskKey, String diskKey, String uri, int reqWidth, int reqHeight,
+             Bitmap.Config config) {
+        this.mLoader = loader;
+        this.taskKey = taskKey;
+        this.diskKey = diskKey;
+        this.uri = uri;
+        this.reqWidth = reqWidth;
+        this.reqHeight = reqHeight;
+        this.config = config;
+    }
+
+    /**
+     * 挂载一个等待结果的请求
+     *
+     * @param handle
+     */
+    synchronized void attach(RequestHandle handle) {
+        mTargets.add(handle);
+    }
+
+    /**
+     * 移除一个等待结果的请求
+     *
+     * @param handle
+     * @return 是否已经没有等待者
+     */
+    synchronized boolean detach(RequestHandle handle) {
+        mTargets.remove(handle);
+        return mTargets.isEmpty();
+    }
+
+    /**
+     * @return 当前所有等待结果的请求副本
+     */
+    synchronized List<RequestHandle> targets() {
+        return new ArrayList<RequestHandle>(mTargets);
+    }
+
+    /**
+     * @param snapshot
+     * @param resized  是否来自缩放变体磁盘缓存
+     */
+    synchronized void setSnapshot(DiskLruCache.Snapshot snapshot, boolean resized) {
+        mSnapshot = snapshot;
+        mResizedSnapshot = resized;
+    }
+
+    synchronized boolean isResizedSnapshot() {
+        return mResizedSnapshot;
+    }
+
+    synchronized DiskLruCache.Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * 关闭持有的缓存条目，任务结束或被移出队列时调用
+     */
+    synchronized void releaseSnapshot() {
+        if (mSnapshot != null) {
+            mSnapshot.close();
+            mSnapshot = null;
+        }
+    }
+
+    /**
+     * 任务结束，唤醒 {@link #awaitCompletion} 的调用方
+     */
+    synchronized void complete() {
+        mCompleted = true;
+        notifyAll();
+    }
+
+    synchronized boolean isCompleted() {
+        return mCompleted;
+    }
+
+    /**
+     * 等待任务结束，用于不经过 ImageView 的同步调用
+     *
+     * @throws InterruptedException
+     */
+    synchronized void awaitCompletion() throws InterruptedException {
+        while (!mCompleted) {
+            wait();
+        }
+    }
+
+    void cancel() {
+        mCancelled = true;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public void run() {
+        mLoader.runStage(this);
+    }
+}
@@ -0,0 +1,165 @@
+package io.github.brijoe;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * 根据系统内存压力调整内存缓存和 Bitmap 池的容量
+ * <p/>
+ * 收到 {@link #onTrimMemory} 时按级别逐级缩小容量，级别越高保留得越少；内存恢复后由
+ * {@link #maybeRegrow} 每隔一段时间恢复一级，直到回到由 {@link ActivityManager#getMemoryClass()}
+ * 得出的预算。正在显示的 Bitmap 不受影响
+ */
+final class MemoryTrimmer implements ComponentCallbacks2 {
+
+    private static final String TAG = "MemoryTrimmer";
+
+    /**
+     * 每次恢复的容量百分比
+     */
+    private static final int REGROW_STEP_PERCENT = 25;
+    /**
+     * 距离上一次缩小或恢复至少间隔这么久才再恢复一级
+     */
+    private static final long REGROW_INTERVAL_MILLIS = 5000;
+
+    private final ActivityManager mActivityManager;
+    private final BitmapMemoryCache mMemoryCache;
+    private final BitmapPool mBitmapPool;
+    private final LruCache<String, Bitmap> mTileCache;
+    private final ByteArrayPool[] mBufferPools;
+    /**
+     * 内存缓存预算，单位KB
+     */
+    private final int mCacheBudget;
+    /**
+     * Bitmap 池预算，单位字节
+     */
+    private final int mPoolBudget;
+
+    /**
+     * 当前容量占预算的百分比
+     */
+    private volatile int mPercent = 100;
+    private volatile long mLastChangeTime;
+
+    /**
+     * @param context
+     * @param memoryCache
+     * @param cacheBudget 内存缓存预算，单位KB
+     * @param bitmapPool
+     * @param poolBudget  Bitmap 池预算，单位字节
+     * @param tileCache   分块加载的块缓存，内存紧张时清空
+     * @param bufferPools 内存紧张时清空的缓冲区池
+     */
+    MemoryTrimmer(Context context, BitmapMemoryCache memoryCache, int cacheBudget,
+                  BitmapPool bitmapPool, int poolBudget, LruCache<String, Bitmap> tileCache,
+                  ByteArrayPool... bufferPools) {
+        mActivityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mMemoryCache = memoryCache;
+        mCacheBudget = cacheBudget;
+        mBitmapPool = bitmapPool;
+        mPoolBudget = poolBudget;
+        mTileCache = tileCache;
+        mBufferPools = bufferPools;
+    }
+
+    /**
+     * @param context
+     * @return 应用的标准堆大小，单位KB，取不到时为当前进程可用最大内存
+     */
+    static int getMemoryClass(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClass = am != null ? am.getMemoryClass() : 0;
+        if (memoryClass <= 0) {
+            return (int) (Runtime.getRuntime().maxMemory() / 1024);
+        }
+        return memoryClass * 1024;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        int percent = getPercentForLevel(level);
+        Log.d(TAG, "onTrimMemory,level:" + level + ",percent:" + percent);
+        if (percent < mPercent) {
+            applyPercent(percent);
+        }
+        mLastChangeTime = SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * 容量被缩小过、并且距离上一次调整已经足够久时，系统不再处于低内存状态就恢复一级容量。
+     * 每次加载图片时调用，没有缩小过时只有一次 volatile 读
+     */
+    void maybeRegrow() {
+        if (mPercent >= 100 || SystemClock.uptimeMillis() - mLastChangeTime < REGROW_INTERVAL_MILLIS) {
+            return;
+        }
+        mLastChangeTime = SystemClock.uptimeMillis();
+        if (mActivityManager != null) {
+            ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+            mActivityManager.getMemoryInfo(info);
+            if (info.lowMemory) {
+                return;
+            }
+        }
+        applyPercent(Math.min(100, mPercent + REGROW_STEP_PERCENT));
+    }
+
+    /**
+     * 先缩小 Bitmap 池，内存缓存随后淘汰的 Bitmap 不会再占满池
+     *
+     * @param percent
+     */
+    private synchronized void applyPercent(int percent) {
+        mPercent = percent;
+        mBitmapPool.resize((int) ((long) mPoolBudget * percent / 100));
+        mMemoryCache.resize((int) ((long) mCacheBudget * percent / 100));
+        if (percent <= 50) {
+            //块缓存只在大图详情页使用，离开后可以整体丢弃
+            mTileCache.evictAll();
+            for (ByteArrayPool pool : mBufferPools) {
+                pool.clear();
+            }
+        }
+    }
+
+    /**
+     * @param level
+     * @return 该级别下保留的容量百分比
+     */
+    private static int getPercentForLevel(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            return 0;
+        } else if (level >= TRIM_MEMORY_MODERATE) {
+            return 25;
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            return 50;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            //界面不可见，页面回来时多半还要显示同样的图片，只释放一部分
+            return 75;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 25;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return 50;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return 75;
+        }
+        return 100;
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.brijoe;
+
+import android.widget.AbsListView;
+
+/**
+ * 列表滑动时暂停 {@link DLoader} 提交新的加载任务，停止滑动后按可见顺序恢复，
+ * 不需要在停止滑动时调用 notifyDataSetChanged() 重新绑定
+ * <p/>
+ * 需要同时监听滚动时传入 delegate，回调会转发给它
+ */
+public class PauseOnScrollListener implements AbsListView.OnScrollListener {
+
+    private final DLoader mLoader;
+    private final boolean mPauseOnTouchScroll;
+    private final boolean mPauseOnFling;
+    private final AbsListView.OnScrollListener mDelegate;
+
+    /**
+     * @param loader
+     * @param pauseOnTouchScroll 手指拖动时是否暂停
+     * @param pauseOnFling       快速滑动时是否暂停
+     */
+    public PauseOnScrollListener(DLoader loader, boolean pauseOnTouchScroll, boolean pauseOnFling) {
+        this(loader, pauseOnTouchScroll, pauseOnFling, null);
+    }
+
+    /**
+     * @param loader
+     * @param pauseOnTouchScroll 手指拖动时是否暂停
+     * @param pauseOnFling       快速滑动时是否暂停
+     * @param delegate           maybe null.
+     */
+    public PauseOnScrollListener(DLoader loader, boolean pauseOnTouchScroll, boolean pauseOnFling,
+                                 AbsListView.OnScrollListener delegate) {
+        if (loader == null)
+            throw new IllegalArgumentException("loader must not be null!");
+        mLoader = loader;
+        mPauseOnTouchScroll = pauseOnTouchScroll;
+        mPauseOnFling = pauseOnFling;
+        mDelegate = delegate;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        switch (scrollState) {
+            case SCROLL_STATE_IDLE:
+                mLoader.resume();
+                break;
+            case SCROLL_STATE_TOUCH_SCROLL:
+                if (mPauseOnTouchScroll) {
+                    mLoader.pause();
+                } else {
+                    mLoader.resume();
+                }
+                break;
+            case SCROLL_STATE_FLING:
+                if (mPauseOnFling) {
+                    mLoader.pause();
+                } else {
+                    mLoader.resume();
+                }
+                break;
+        }
+        if (mDelegate != null) {
+            mDelegate.onScrollStateChanged(view, scrollState);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (mDelegate != null) {
+            mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package io.github.brijoe;
+
+/**
+ * 预加载的深度，见 {@link DLoader#preload}
+ */
+public enum PreloadLevel {
+    /**
+     * 只下载到磁盘缓存，不解码，不占用内存
+     */
+    DISK,
+    /**
+     * 下载并解码到内存缓存，滚动到可见时直接命中内存
+     */
+    MEMORY
+}
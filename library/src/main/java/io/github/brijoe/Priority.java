@@ -0,0 +1,19 @@
+package io.github.brijoe;
+
+/**
+ * 加载请求的优先级，优先级高的请求先出队执行
+ */
+public enum Priority {
+    /**
+     * 立即需要显示的图片，例如详情页大图
+     */
+    IMMEDIATE,
+    /**
+     * 普通的列表项图片，默认优先级
+     */
+    NORMAL,
+    /**
+     * 预加载，不影响可见图片的加载
+     */
+    PREFETCH
+}
@@ -0,0 +1,45 @@
+package io.github.brijoe;
+
+/**
+ * 在阶段线程池中排队的任务，线程池队列按优先级和同优先级内的排序值出队
+ * <p/>
+ * 同一个线程池中可以混合不同类型的任务，例如图片加载任务和大图分块解码任务
+ */
+abstract class PriorityTask implements Runnable, Comparable<PriorityTask> {
+
+    /**
+     * 任务优先级和同优先级内的排序值，只在任务不在线程池队列中时修改
+     */
+    private Priority mPriority;
+    private long mOrder;
+
+    /**
+     * 更新排序参数，调用方需保证任务此时不在线程池队列中
+     *
+     * @param priority
+     * @param order    值越小越先出队
+     */
+    synchronized void schedule(Priority priority, long order) {
+        if (mPriority == null || priority.ordinal() < mPriority.ordinal()) {
+            mPriority = priority;
+        }
+        mOrder = order;
+    }
+
+    @Override
+    public int compareTo(PriorityTask another) {
+        Priority priority;
+        long order;
+        synchronized (another) {
+            priority = another.mPriority;
+            order = another.mOrder;
+        }
+        synchronized (this) {
+            int result = mPriority.compareTo(priority);
+            if (result != 0) {
+                return result;
+            }
+            return mOrder < order ? -1 : (mOrder == order ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.brijoe;
+
+import android.widget.ImageView;
+
+/**
+ * {@link DLoader#load} 返回的请求句柄，可用于取消尚未完成的加载
+ * <p/>
+ * 同一个 ImageView 重新绑定新的uri 时，之前的请求会被自动取消
+ */
+public final class RequestHandle {
+
+    final ImageView imageView;
+    /**
+     * 请求挂载的加载任务，内存缓存命中或暂停期间延迟提交时为 null
+     */
+    final LoadTask task;
+
+    private final DLoader mLoader;
+
+    private volatile boolean mCancelled = false;
+
+    RequestHandle(DLoader loader, ImageView imageView, LoadTask task) {
+        this.mLoader = loader;
+        this.imageView = imageView;
+        this.task = task;
+    }
+
+    /**
+     * 取消该请求，如果加载任务已没有其他等待者，任务会从线程池队列中移除或者在执行中途停止
+     * <p/>
+     * NOTE THAT:should run id UI Thread
+     */
+    public void cancel() {
+        if (mCancelled) {
+            return;
+        }
+        mCancelled = true;
+        mLoader.cancelRequest(this);
+    }
+
+    /**
+     * @return 是否已被取消
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+}
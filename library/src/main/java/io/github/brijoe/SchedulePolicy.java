@@ -0,0 +1,33 @@
+package io.github.brijoe;
+
+/**
+ * 同一优先级的请求在线程池队列中的出队顺序
+ */
+public enum SchedulePolicy {
+    /**
+     * 后进先出，快速滑动后最新绑定的可见项最先加载，默认策略
+     */
+    LIFO {
+        @Override
+        long order(long sequence) {
+            return -sequence;
+        }
+    },
+    /**
+     * 先进先出
+     */
+    FIFO {
+        @Override
+        long order(long sequence) {
+            return sequence;
+        }
+    };
+
+    /**
+     * 根据请求的提交序号计算排序值，值越小越先出队
+     *
+     * @param sequence 单调递增的提交序号
+     * @return
+     */
+    abstract long order(long sequence);
+}
@@ -0,0 +1,413 @@
+package io.github.brijoe;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 超大图片的分块加载，由 {@link DLoader#openTiledImage} 创建
+ * <p/>
+ * 图片按缩放级别切成 {@link #TILE_SIZE} 大小的块，级别 n 对应 inSampleSize = 2^n。
+ * 每次只解码当前可见区域在当前级别下的块，块按 (uri, 级别, x, y) 缓存在 LRU 中，
+ * 内存占用只与可见区域大小有关，与图片大小无关。块在解码线程池中并行解码，
+ * 每个解码线程使用自己的 {@link BitmapRegionDecoder}
+ */
+public final class TiledImage {
+
+    private static final String TAG = "TiledImage";
+
+    /**
+     * 每个块解码后的边长，单位像素
+     */
+    public static final int TILE_SIZE = 256;
+    /**
+     * 最大缩放级别
+     */
+    private static final int MAX_LEVEL = 16;
+    /**
+     * 块缓存能容纳的屏幕数：缩放切换级别时新旧两级的块同时在用
+     */
+    private static final int CACHED_SCREENS = 2;
+
+    /**
+     * 块加载完成的回调，在UI 线程执行
+     */
+    public interface TileCallback {
+        void onTileLoaded(Tile tile);
+    }
+
+    /**
+     * 一个解码完成的块
+     */
+    public static final class Tile {
+        private final int mLevel;
+        private final int mX;
+        private final int mY;
+        private final Rect mRegion;
+        private final Bitmap mBitmap;
+
+        Tile(int level, int x, int y, Rect region, Bitmap bitmap) {
+            mLevel = level;
+            mX = x;
+            mY = y;
+            mRegion = region;
+            mBitmap = bitmap;
+        }
+
+        public int getLevel() {
+            return mLevel;
+        }
+
+        public int getX() {
+            return mX;
+        }
+
+        public int getY() {
+            return mY;
+        }
+
+        /**
+         * @return 块在原图中的区域，绘制时将 bitmap 缩放到该区域
+         */
+        public Rect getRegion() {
+            return mRegion;
+        }
+
+        public Bitmap getBitmap() {
+            return mBitmap;
+        }
+    }
+
+    private final String mDiskKey;
+    private final File mFile;
+    private final int mWidth;
+    private final int mHeight;
+    private final Bitmap.Config mConfig;
+    private final LruCache<String, Bitmap> mTileCache;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * 空闲的解码器，每个解码器同一时刻只被一个线程使用
+     */
+    private final ArrayDeque<BitmapRegionDecoder> mIdleDecoders = new ArrayDeque<BitmapRegionDecoder>();
+    private int mMaxDecoders;
+    private int mDecoderCount;
+    private boolean mClosed = false;
+
+    /**
+     * 排队和解码中的块，只在UI 线程读写
+     */
+    private final Map<String, TileTask> mPendingTiles = new HashMap<String, TileTask>();
+
+    /**
+     * @param diskKey
+     * @param file       磁盘缓存中的图片文件
+     * @param config     解码配置
+     * @param tileCache  所有分块图片共用的块缓存
+     * @param executor   解码线程池
+     * @param maxDecoders 最多同时使用的解码器个数，即并行解码的块数
+     * @throws IOException 图片格式不支持分块解码
+     */
+    TiledImage(String diskKey, File file, Bitmap.Config config, LruCache<String, Bitmap> tileCache,
+               ThreadPoolExecutor executor, int maxDecoders) throws IOException {
+        mDiskKey = diskKey;
+        mFile = file;
+        mConfig = config;
+        mTileCache = tileCache;
+        mExecutor = executor;
+        mMaxDecoders = Math.max(1, maxDecoders);
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        mIdleDecoders.add(decoder);
+        mDecoderCount = 1;
+    }
+
+    /**
+     * @return 原图宽
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return 原图高
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 块缓存大小与屏幕大小成正比：覆盖一屏最多需要 (宽 / 块边长 + 2) * (高 / 块边长 + 2) 个块，
+     * 按 ARGB_8888 计算，并容纳 {@link #CACHED_SCREENS} 屏
+     *
+     * @param metrics
+     * @return 块缓存大小，单位KB
+     */
+    static int getTileCacheSize(DisplayMetrics metrics) {
+        int columns = metrics.widthPixels / TILE_SIZE + 2;
+        int rows = metrics.heightPixels / TILE_SIZE + 2;
+        long bytes = (long) columns * rows * TILE_SIZE * TILE_SIZE * 4 * CACHED_SCREENS;
+        return (int) (bytes / 1024);
+    }
+
+    /**
+     * @param scale 显示尺寸 / 原图尺寸
+     * @return 不低于显示清晰度的最大级别
+     */
+    public static int getLevel(float scale) {
+        int level = 0;
+        while (scale > 0 && level < MAX_LEVEL && scale * (2 << level) <= 1) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * 加载可见区域在当前缩放下的所有块：已缓存的块同步回调，其余的提交解码，离可见区域中心近的先解码。
+     * 之前提交、但已不在本次可见区域内的块被取消
+     * <p/>
+     * NOTE THAT:should run id UI Thread
+     *
+     * @param visible  原图坐标系中的可见区域
+     * @param scale    显示尺寸 / 原图尺寸
+     * @param callback
+     */
+    public void loadTiles(Rect visible, float scale, TileCallback callback) {
+        if (isClosed() || visible.right <= 0 || visible.bottom <= 0
+                || visible.left >= mWidth || visible.top >= mHeight) {
+            return;
+        }
+        final int level = getLevel(scale);
+        final int span = TILE_SIZE << level;
+        int left = Math.max(0, visible.left) / span;
+        int top = Math.max(0, visible.top) / span;
+        int right = (Math.min(mWidth, visible.right) - 1) / span;
+        int bottom = (Math.min(mHeight, visible.bottom) - 1) / span;
+        List<TileTask> missing = new ArrayList<TileTask>();
+        Map<String, TileTask> wanted = new HashMap<String, TileTask>();
+        for (int y = top; y <= bottom; y++) {
+            for (int x = left; x <= right; x++) {
+                String key = createTileKey(mDiskKey, level, x, y);
+                Rect region = new Rect(x * span, y * span, Math.min(mWidth, (x + 1) * span),
+                        Math.min(mHeight, (y + 1) * span));
+                Bitmap bitmap = mTileCache.get(key);
+                if (bitmap != null) {
+                    callback.onTileLoaded(new Tile(level, x, y, region, bitmap));
+                    continue;
+                }
+                TileTask task = mPendingTiles.remove(key);
+                if (task == null) {
+                    task = new TileTask(key, level, x, y, region);
+                    missing.add(task);
+                }
+                task.callback = callback;
+                wanted.put(key, task);
+            }
+        }
+        //取消已经不可见的块
+        for (TileTask task : mPendingTiles.values()) {
+            task.cancelled = true;
+            mExecutor.remove(task);
+        }
+        mPendingTiles.clear();
+        mPendingTiles.putAll(wanted);
+        //离可见区域中心近的先解码
+        final int centerX = (visible.left + visible.right) / 2;
+        final int centerY = (visible.top + visible.bottom) / 2;
+        Collections.sort(missing, new Comparator<TileTask>() {
+            @Override
+            public int compare(TileTask lhs, TileTask rhs) {
+                long l = lhs.distanceTo(centerX, centerY);
+                long r = rhs.distanceTo(centerX, centerY);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < missing.size(); i++) {
+            TileTask task = missing.get(i);
+            task.schedule(Priority.IMMEDIATE, i);
+            mExecutor.execute(task);
+        }
+    }
+
+    /**
+     * 取消所有排队和解码中的块
+     * <p/>
+     * NOTE THAT:should run id UI Thread
+     */
+    public void cancel() {
+        for (Iterator<TileTask> i = mPendingTiles.values().iterator(); i.hasNext(); ) {
+            TileTask task = i.next();
+            task.cancelled = true;
+            mExecutor.remove(task);
+            i.remove();
+        }
+    }
+
+    /**
+     * 取消所有块并释放解码器，已缓存的块留在块缓存中
+     * <p/>
+     * NOTE THAT:should run id UI Thread
+     */
+    public void close() {
+        cancel();
+        synchronized (this) {
+            mClosed = true;
+            for (BitmapRegionDecoder decoder : mIdleDecoders) {
+                decoder.recycle();
+            }
+            mIdleDecoders.clear();
+            notifyAll();
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * @param diskKey
+     * @param level
+     * @param x
+     * @param y
+     * @return 块缓存key
+     */
+    static String createTileKey(String diskKey, int level, int x, int y) {
+        return diskKey + "_" + level + "_" + x + "_" + y;
+    }
+
+    /**
+     * 取得一个空闲的解码器，没有时在不超过上限的前提下新建，否则等待其他线程归还
+     *
+     * @return 已关闭时返回null
+     */
+    private synchronized BitmapRegionDecoder obtainDecoder() throws InterruptedException {
+        while (!mClosed) {
+            BitmapRegionDecoder decoder = mIdleDecoders.poll();
+            if (decoder != null) {
+                return decoder;
+            }
+            if (mDecoderCount < mMaxDecoders) {
+                try {
+                    decoder = BitmapRegionDecoder.newInstance(mFile.getAbsolutePath(), false);
+                    mDecoderCount++;
+                    return decoder;
+                } catch (IOException e) {
+                    //文件已被磁盘缓存淘汰，之后只使用已有的解码器
+                    Log.w(TAG, "create region decoder fail: " + e);
+                    mMaxDecoders = mDecoderCount;
+                }
+            }
+            wait();
+        }
+        return null;
+    }
+
+    private synchronized void recycleDecoder(BitmapRegionDecoder decoder) {
+        if (mClosed) {
+            decoder.recycle();
+            return;
+        }
+        mIdleDecoders.add(decoder);
+        notifyAll();
+    }
+
+    private final class TileTask extends PriorityTask {
+        final String key;
+        final int level;
+        final int x;
+        final int y;
+        final Rect region;
+        /**
+         * 只在UI 线程读写
+         */
+        TileCallback callback;
+        volatile boolean cancelled = false;
+
+        TileTask(String key, int level, int x, int y, Rect region) {
+            this.key = key;
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.region = region;
+        }
+
+        long distanceTo(int centerX, int centerY) {
+            long dx = (region.left + region.right) / 2 - centerX;
+            long dy = (region.top + region.bottom) / 2 - centerY;
+            return dx * dx + dy * dy;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            Bitmap bitmap = mTileCache.get(key);
+            if (bitmap == null) {
+                bitmap = decode();
+            }
+            if (bitmap == null) {
+                return;
+            }
+            final Bitmap result = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled || mPendingTiles.get(key) != TileTask.this) {
+                        return;
+                    }
+                    mPendingTiles.remove(key);
+                    callback.onTileLoaded(new Tile(level, x, y, region, result));
+                }
+            });
+        }
+
+        private Bitmap decode() {
+            BitmapRegionDecoder decoder;
+            try {
+                decoder = obtainDecoder();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (decoder == null) {
+                return null;
+            }
+            try {
+                if (cancelled) {
+                    return null;
+                }
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = 1 << level;
+                options.inPreferredConfig = mConfig;
+                Bitmap bitmap = decoder.decodeRegion(region, options);
+                if (bitmap != null) {
+                    mTileCache.put(key, bitmap);
+                }
+                return bitmap;
+            } finally {
+                recycleDecoder(decoder);
+            }
+        }
+    }
+}
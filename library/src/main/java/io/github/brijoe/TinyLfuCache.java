@@ -0,0 +1,522 @@
+package io.github.brijoe;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * W-TinyLFU 缓存，接口与 {@link android.util.LruCache} 一致，可直接替换
+ * <p/>
+ * 新条目先进入一个很小的 LRU 窗口，被挤出窗口后要和主区域即将淘汰的条目比较访问频率，
+ * 频率更高才能进入主区域。主区域分为试用区和保护区，试用区的条目再次命中后升入保护区。
+ * 访问频率由 count-min sketch 近似记录并周期性减半，一次快速滑动经过的大量只访问一次的图片
+ * 只会在窗口中轮换，不会挤掉头像、图标这类经常访问的图片
+ * <p/>
+ * 大小按 {@link #sizeOf} 计算，与 LruCache 一致。所有方法线程安全，{@link #entryRemoved} 在锁外回调
+ *
+ * @param <K>
+ * @param <V>
+ */
+class TinyLfuCache<K, V> {
+
+    /**
+     * 窗口占总容量的百分比
+     */
+    private static final int WINDOW_PERCENT = 1;
+    /**
+     * 保护区占主区域的百分比
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final class Node<K, V> {
+        final K key;
+        V value;
+        int size;
+        int queue;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * 一个按访问顺序排列的双向链表，head 为最久未访问
+     */
+    private static final class Queue<K, V> {
+        Node<K, V> head;
+        Node<K, V> tail;
+        int size;
+
+        void addLast(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            size += node.size;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            size -= node.size;
+        }
+    }
+
+    private final Map<K, Node<K, V>> mMap = new HashMap<K, Node<K, V>>();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Queue<K, V>[] mQueues = new Queue[]{new Queue<K, V>(), new Queue<K, V>(), new Queue<K, V>()};
+    private FrequencySketch mSketch;
+
+    private int mMaxSize;
+    private int mWindowMaxSize;
+    private int mProtectedMaxSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+    private int mRejectionCount;
+
+    /**
+     * @param maxSize 最大容量，单位与 {@link #sizeOf} 一致
+     */
+    TinyLfuCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * 取得 key 对应的值并记录一次访问
+     *
+     * @param key
+     * @return
+     */
+    final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        synchronized (this) {
+            mSketch.increment(key);
+            Node<K, V> node = mMap.get(key);
+            if (node == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+            onHit(node);
+            return node.value;
+        }
+    }
+
+    /**
+     * 取得 key 对应的值，不记录访问，也不计入命中统计
+     *
+     * @param key
+     * @return
+     */
+    final synchronized V peek(K key) {
+        Node<K, V> node = mMap.get(key);
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * 放入或替换 key 对应的值，新条目进入窗口
+     *
+     * @param key
+     * @param value
+     * @return 之前的值
+     */
+    final V put(K key, V value) {
+        return put(key, value, WINDOW);
+    }
+
+    /**
+     * 放入或替换 key 对应的值，跳过窗口和准入比较直接进入试用区，并记录一次访问。
+     * 用于预加载这类马上就要使用、但还没有访问记录的条目：它们按访问频率永远比不过主区域的条目，
+     * 正常放入时一个比窗口还大的条目会把上一个挤出窗口并被拒绝，一批预加载最后只剩一个
+     *
+     * @param key
+     * @param value
+     * @return 之前的值
+     */
+    final V putAdmitted(K key, V value) {
+        return put(key, value, PROBATION);
+    }
+
+    private V put(K key, V value, int queue) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        V previous = null;
+        List<Node<K, V>> removed = new ArrayList<Node<K, V>>();
+        synchronized (this) {
+            Node<K, V> node = mMap.get(key);
+            if (node != null) {
+                previous = node.value;
+                mQueues[node.queue].remove(node);
+            } else {
+                node = new Node<K, V>(key);
+                mMap.put(key, node);
+            }
+            node.value = value;
+            node.size = safeSizeOf(key, value);
+            node.queue = queue;
+            mQueues[queue].addLast(node);
+            if (queue != WINDOW) {
+                mSketch.increment(key);
+            }
+            evict(node, removed);
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        dispatchEvicted(removed);
+        return previous;
+    }
+
+    /**
+     * 移除 key 对应的值并像 {@link #get} 一样记录一次访问，用于取出后交给调用方持有的条目
+     *
+     * @param key
+     * @return 被移除的值
+     */
+    final V take(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        V previous;
+        synchronized (this) {
+            mSketch.increment(key);
+            Node<K, V> node = mMap.remove(key);
+            if (node == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+            mQueues[node.queue].remove(node);
+            previous = node.value;
+        }
+        entryRemoved(false, key, previous, null);
+        return previous;
+    }
+
+    /**
+     * @param key
+     * @return 被移除的值
+     */
+    final V remove(K key) {
+        V previous;
+        synchronized (this) {
+            Node<K, V> node = mMap.remove(key);
+            if (node == null) {
+                return null;
+            }
+            mQueues[node.queue].remove(node);
+            previous = node.value;
+        }
+        entryRemoved(false, key, previous, null);
+        return previous;
+    }
+
+    /**
+     * 淘汰条目直到总大小不超过 maxSize，按 试用区 -> 窗口 -> 保护区 的顺序从最久未访问开始淘汰
+     *
+     * @param maxSize
+     */
+    void trimToSize(int maxSize) {
+        List<Node<K, V>> removed = new ArrayList<Node<K, V>>();
+        synchronized (this) {
+            while (!mMap.isEmpty() && size() > maxSize) {
+                Node<K, V> node = mQueues[PROBATION].head;
+                if (node == null) {
+                    node = mQueues[WINDOW].head;
+                }
+                if (node == null) {
+                    node = mQueues[PROTECTED].head;
+                }
+                evictNode(node, removed);
+            }
+        }
+        dispatchEvicted(removed);
+    }
+
+    /**
+     * 调整最大容量，缩小时立即淘汰超出的条目
+     *
+     * @param maxSize
+     */
+    void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        synchronized (this) {
+            setMaxSize(maxSize);
+        }
+        trimToSize(maxSize);
+    }
+
+    final void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * @return 当前总大小
+     */
+    final synchronized int size() {
+        return mQueues[WINDOW].size + mQueues[PROBATION].size + mQueues[PROTECTED].size;
+    }
+
+    final synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    final synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    final synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return 因容量被淘汰的条目数
+     */
+    final synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return 挤出窗口后因访问频率不够没有进入主区域的条目数，包含在 {@link #evictionCount()} 中
+     */
+    final synchronized int rejectionCount() {
+        return mRejectionCount;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @return 条目大小，默认为1
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * 条目被淘汰、移除或替换时回调，与 {@link android.util.LruCache#entryRemoved} 一致
+     *
+     * @param evicted  是否因容量被淘汰
+     * @param key
+     * @param oldValue
+     * @param newValue 替换时为新值，否则为null
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    private void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        mWindowMaxSize = Math.max(1, (int) ((long) maxSize * WINDOW_PERCENT / 100));
+        mProtectedMaxSize = (int) ((long) (maxSize - mWindowMaxSize) * PROTECTED_PERCENT / 100);
+        if (mSketch == null) {
+            mSketch = new FrequencySketch(maxSize);
+        }
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    private void onHit(Node<K, V> node) {
+        Queue<K, V> queue = mQueues[node.queue];
+        queue.remove(node);
+        if (node.queue == PROBATION) {
+            //试用区再次命中，升入保护区，保护区超出时最久未访问的降回试用区
+            node.queue = PROTECTED;
+            mQueues[PROTECTED].addLast(node);
+            while (mQueues[PROTECTED].size > mProtectedMaxSize && mQueues[PROTECTED].head != node) {
+                Node<K, V> demoted = mQueues[PROTECTED].head;
+                mQueues[PROTECTED].remove(demoted);
+                demoted.queue = PROBATION;
+                mQueues[PROBATION].addLast(demoted);
+            }
+        } else {
+            queue.addLast(node);
+        }
+    }
+
+    /**
+     * 放入 added 之后的淘汰：窗口超出的条目参与准入比较，最后保证总大小不超过 maxSize。
+     * 刚放入的条目本身不会被淘汰，调用方放入后马上就要使用它
+     *
+     * @param added
+     * @param removed 被淘汰的条目
+     */
+    private void evict(Node<K, V> added, List<Node<K, V>> removed) {
+        Queue<K, V> window = mQueues[WINDOW];
+        while (window.size > mWindowMaxSize && window.head != added) {
+            Node<K, V> candidate = window.head;
+            window.remove(candidate);
+            admit(candidate, removed);
+        }
+        while (size() > mMaxSize) {
+            Node<K, V> victim = oldestExcept(PROBATION, added);
+            if (victim == null) {
+                victim = oldestExcept(PROTECTED, added);
+            }
+            if (victim == null) {
+                victim = oldestExcept(WINDOW, added);
+            }
+            if (victim == null) {
+                break;
+            }
+            evictNode(victim, removed);
+        }
+    }
+
+    /**
+     * @param queue
+     * @param added 刚放入的条目，总在所在队列的末尾
+     * @return 队列中除 added 之外最久未访问的条目
+     */
+    private Node<K, V> oldestExcept(int queue, Node<K, V> added) {
+        Node<K, V> head = mQueues[queue].head;
+        return head != added ? head : null;
+    }
+
+    /**
+     * 挤出窗口的 candidate 只有比主区域即将淘汰的条目访问更频繁才能进入主区域
+     *
+     * @param candidate 已从窗口移除
+     * @param removed
+     */
+    private void admit(Node<K, V> candidate, List<Node<K, V>> removed) {
+        int mainMaxSize = mMaxSize - mWindowMaxSize;
+        int candidateFrequency = mSketch.frequency(candidate.key);
+        while (mQueues[PROBATION].size + mQueues[PROTECTED].size + candidate.size > mainMaxSize) {
+            Node<K, V> victim = mQueues[PROBATION].head;
+            if (victim == null) {
+                victim = mQueues[PROTECTED].head;
+            }
+            if (victim == null || candidateFrequency <= mSketch.frequency(victim.key)) {
+                mMap.remove(candidate.key);
+                removed.add(candidate);
+                mEvictionCount++;
+                mRejectionCount++;
+                return;
+            }
+            evictNode(victim, removed);
+        }
+        candidate.queue = PROBATION;
+        mQueues[PROBATION].addLast(candidate);
+    }
+
+    private void evictNode(Node<K, V> node, List<Node<K, V>> removed) {
+        mQueues[node.queue].remove(node);
+        mMap.remove(node.key);
+        removed.add(node);
+        mEvictionCount++;
+    }
+
+    private void dispatchEvicted(List<Node<K, V>> removed) {
+        for (Node<K, V> node : removed) {
+            entryRemoved(true, node.key, node.value, null);
+        }
+    }
+
+    /**
+     * 4 行 count-min sketch，每个计数器最大 15，累计记录次数达到阈值后全部减半，
+     * 让很久以前的热门条目逐渐失去优势
+     */
+    private static final class FrequencySketch {
+
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0xb7d3a2c5, 0x3c6ef372, 0x5a8a0c4d};
+
+        private final byte[][] mTable;
+        private final int mMask;
+        private final int mSampleSize;
+        private int mAdditions;
+
+        /**
+         * @param maxSize 缓存容量，据此估算条目数和表宽
+         */
+        FrequencySketch(int maxSize) {
+            //按每个条目至少 64 个单位估算条目数
+            int width = Integer.highestOneBit(Math.max(256, Math.min(maxSize / 64, 1 << 16)) * 2 - 1);
+            mTable = new byte[DEPTH][width];
+            mMask = width - 1;
+            mSampleSize = width * 10;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = indexOf(hash, i);
+                if (mTable[i][index] < MAX_COUNT) {
+                    mTable[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++mAdditions >= mSampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, mTable[i][indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & mMask;
+        }
+
+        private void reset() {
+            for (byte[] row : mTable) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            mAdditions /= 2;
+        }
+
+        private static int spread(int h) {
+            h ^= h >>> 17;
+            h *= 0xed5ad4bb;
+            h ^= h >>> 11;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package io.github.brijoe;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 缩放变体索引：原图缓存key -> 由它生成的缩放变体key
+ * <p/>
+ * 原图被新的响应替换时直接找到要作废的变体，不需要遍历缩放变体磁盘缓存的全部key。
+ * 被磁盘缓存淘汰的变体可能还留在索引中，删除时找不到条目即可忽略
+ */
+final class VariantIndex {
+
+    private static final char SEPARATOR = '_';
+
+    private final Map<String, Set<String>> mVariants = new HashMap<String, Set<String>>();
+
+    /**
+     * @param diskKey   原图缓存key
+     * @param reqWidth  目标宽度
+     * @param reqHeight 目标高度
+     * @return 缩放变体缓存key
+     */
+    static String keyFor(String diskKey, int reqWidth, int reqHeight) {
+        return diskKey + SEPARATOR + reqWidth + "x" + reqHeight;
+    }
+
+    /**
+     * 登记缩放变体磁盘缓存中已有的key，打开缓存时调用一次
+     *
+     * @param keys
+     */
+    synchronized void addAll(Collection<String> keys) {
+        for (String key : keys) {
+            add(key);
+        }
+    }
+
+    /**
+     * 登记一个缩放变体
+     *
+     * @param key 由 {@link #keyFor} 生成的key，其他格式的key被忽略
+     */
+    synchronized void add(String key) {
+        int index = key.lastIndexOf(SEPARATOR);
+        if (index <= 0) {
+            return;
+        }
+        String diskKey = key.substring(0, index);
+        Set<String> variants = mVariants.get(diskKey);
+        if (variants == null) {
+            variants = new HashSet<String>();
+            mVariants.put(diskKey, variants);
+        }
+        variants.add(key);
+    }
+
+    /**
+     * 移除一个已经不在磁盘缓存中的缩放变体
+     *
+     * @param key
+     */
+    synchronized void remove(String key) {
+        int index = key.lastIndexOf(SEPARATOR);
+        if (index <= 0) {
+            return;
+        }
+        String diskKey = key.substring(0, index);
+        Set<String> variants = mVariants.get(diskKey);
+        if (variants != null && variants.remove(key) && variants.isEmpty()) {
+            mVariants.remove(diskKey);
+        }
+    }
+
+    /**
+     * 移除原图的全部缩放变体
+     *
+     * @param diskKey 原图缓存key
+     * @return 被移除的缩放变体key，没有时返回空集合
+     */
+    synchronized Set<String> removeAll(String diskKey) {
+        Set<String> variants = mVariants.remove(diskKey);
+        return variants != null ? variants : Collections.<String>emptySet();
+    }
+}
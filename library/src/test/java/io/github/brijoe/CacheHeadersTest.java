@@ -0,0 +1,132 @@
+package io.github.brijoe;
+
+import org.junit.Test;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheHeadersTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+    private static final long NOW = 1500000000000L;
+    private static final String DATE = "Fri, 14 Jul 2017 02:40:00 GMT";
+    private static final String TEN_DAYS_AGO = "Tue, 04 Jul 2017 02:40:00 GMT";
+
+    /**
+     * 只返回给定响应头的连接，不访问网络
+     */
+    private static final class FakeConnection extends HttpURLConnection {
+
+        private final Map<String, String> mHeaders = new HashMap<String, String>();
+
+        FakeConnection(String... headers) throws Exception {
+            super(new URL("http://example.com/a.jpg"));
+            for (int i = 0; i < headers.length; i += 2) {
+                mHeaders.put(headers[i], headers[i + 1]);
+            }
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mHeaders.get(name);
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public void connect() {
+        }
+    }
+
+    @Test
+    public void maxAgeWinsOverExpires() throws Exception {
+        CacheHeaders headers = CacheHeaders.fromResponse(new FakeConnection(
+                "Cache-Control", "public, max-age=60", "Date", DATE, "Expires", TEN_DAYS_AGO), NOW);
+        assertEquals(NOW + 60 * 1000, headers.expiresAt);
+    }
+
+    @Test
+    public void noCacheIsStaleImmediately() throws Exception {
+        CacheHeaders headers = CacheHeaders.fromResponse(new FakeConnection(
+                "Cache-Control", "no-cache, max-age=60", "ETag", "\"v1\""), NOW);
+        assertFalse(headers.isFresh(NOW));
+    }
+
+    @Test
+    public void noStoreIsNotCached() throws Exception {
+        assertTrue(CacheHeaders.isNoStore(new FakeConnection("Cache-Control", "private, No-Store")));
+        //no-cache 的响应可以保存，只是使用前要验证
+        assertFalse(CacheHeaders.isNoStore(new FakeConnection("Cache-Control", "no-cache")));
+        assertFalse(CacheHeaders.isNoStore(new FakeConnection("Cache-Control", "max-age=60")));
+        assertFalse(CacheHeaders.isNoStore(new FakeConnection()));
+    }
+
+    @Test
+    public void lastModifiedHeuristic() throws Exception {
+        CacheHeaders headers = CacheHeaders.fromResponse(new FakeConnection(
+                "Date", DATE, "Last-Modified", TEN_DAYS_AGO), NOW);
+        assertEquals(NOW + DAY, headers.expiresAt);
+    }
+
+    @Test
+    public void responseWithoutValidatorsNeverExpires() throws Exception {
+        CacheHeaders headers = CacheHeaders.fromResponse(new FakeConnection(), NOW);
+        assertEquals(Long.MAX_VALUE, headers.expiresAt);
+        assertFalse(headers.hasValidators());
+    }
+
+    @Test
+    public void bareNotModifiedUsesStoredEtag() throws Exception {
+        CacheHeaders stored = new CacheHeaders(NOW - HOUR, "\"v1\"", null, false);
+        CacheHeaders refreshed = stored.refresh(new FakeConnection(), NOW);
+        assertTrue(refreshed.notModified);
+        assertEquals(NOW + DAY, refreshed.expiresAt);
+        assertEquals("\"v1\"", refreshed.etag);
+    }
+
+    @Test
+    public void bareNotModifiedUsesStoredLastModified() throws Exception {
+        CacheHeaders stored = new CacheHeaders(NOW - HOUR, null, TEN_DAYS_AGO, false);
+        CacheHeaders refreshed = stored.refresh(new FakeConnection("Date", DATE), NOW);
+        assertEquals(NOW + DAY, refreshed.expiresAt);
+        assertEquals(TEN_DAYS_AGO, refreshed.lastModified);
+    }
+
+    @Test
+    public void notModifiedFreshnessAndValidatorsWin() throws Exception {
+        CacheHeaders stored = new CacheHeaders(NOW - HOUR, "\"v1\"", TEN_DAYS_AGO, false);
+        CacheHeaders refreshed = stored.refresh(new FakeConnection(
+                "Cache-Control", "max-age=600", "ETag", "\"v2\""), NOW);
+        assertEquals(NOW + 600 * 1000, refreshed.expiresAt);
+        assertEquals("\"v2\"", refreshed.etag);
+        assertEquals(TEN_DAYS_AGO, refreshed.lastModified);
+    }
+
+    @Test
+    public void encodeRoundTrip() {
+        CacheHeaders headers = new CacheHeaders(NOW, "W/\"a b%\"", null, true);
+        CacheHeaders parsed = CacheHeaders.parse(headers.encode());
+        assertEquals(NOW, parsed.expiresAt);
+        assertEquals("W/\"a b%\"", parsed.etag);
+        assertNull(parsed.lastModified);
+        assertFalse(parsed.notModified);
+        assertTrue(parsed.sameValidators(headers));
+        assertNull(CacheHeaders.parse("garbage"));
+        assertNull(CacheHeaders.parse(""));
+    }
+}
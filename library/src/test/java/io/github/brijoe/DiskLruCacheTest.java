@@ -0,0 +1,513 @@
+package io.github.brijoe;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskLruCacheTest {
+
+    private static final int APP_VERSION = 100;
+    private static final int VALUE_COUNT = 2;
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    @Rule
+    public TemporaryFolder mTempDir = new TemporaryFolder();
+
+    private File mCacheDir;
+    private DiskLruCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mCacheDir = mTempDir.newFolder("cache");
+        mCache = DiskLruCache.open(mCacheDir, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.close();
+    }
+
+    private static void set(DiskLruCache cache, String key, String a, String b) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        assertNotNull("edit in progress: " + key, editor);
+        editor.set(0, a);
+        editor.set(1, b);
+        editor.commit();
+    }
+
+    private static void assertValue(DiskLruCache cache, String key, String a, String b) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertNotNull("missing entry: " + key, snapshot);
+        try {
+            assertEquals(a, snapshot.getString(0));
+            assertEquals(b, snapshot.getString(1));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static void assertAbsent(DiskLruCache cache, String key) throws IOException {
+        assertNull(cache.get(key));
+        assertFalse(new File(cache.getDirectory(), key + ".0").exists());
+        assertFalse(new File(cache.getDirectory(), key + ".1").exists());
+    }
+
+    private DiskLruCache reopen() throws IOException {
+        mCache.close();
+        mCache = DiskLruCache.open(mCacheDir, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        return mCache;
+    }
+
+    /**
+     * 复制缓存目录中当前落盘的文件，相当于进程在此刻崩溃后留下的状态
+     */
+    private File crashCopy() throws IOException {
+        File copy = mTempDir.newFolder();
+        for (File file : mCacheDir.listFiles()) {
+            InputStream in = new FileInputStream(file);
+            OutputStream out = new FileOutputStream(new File(copy, file.getName()));
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+        }
+        return copy;
+    }
+
+    private void writeFile(String name, String content) throws IOException {
+        OutputStream out = new FileOutputStream(new File(mCacheDir, name));
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 按日志格式构造一条 CLEAN 记录，哈希由调用方指定
+     */
+    private static void putCleanRecord(ByteBuffer journal, long hash, String key, long... lengths) throws IOException {
+        byte[] keyBytes = key.getBytes("UTF-8");
+        journal.put((byte) 1).putLong(hash).putShort((short) keyBytes.length).put(keyBytes);
+        journal.putLong(0);
+        for (long length : lengths) {
+            journal.putLong(length);
+        }
+    }
+
+    private static DiskLruCache open(File dir, DiskLruCache.Durability durability) throws IOException {
+        return DiskLruCache.open(dir, APP_VERSION, VALUE_COUNT, MAX_SIZE, durability);
+    }
+
+    /**
+     * 对每个任务并发执行，等待全部完成并抛出其中的异常
+     */
+    private static void runConcurrently(List<Callable<Void>> tasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<Future<Void>> futures = executor.invokeAll(tasks);
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void editLocksOnlyItsOwnKey() throws Exception {
+        DiskLruCache.Editor first = mCache.edit("k1");
+        assertNotNull(first);
+        assertNull(mCache.edit("k1"));
+        set(mCache, "k2", "a", "b");
+        assertValue(mCache, "k2", "a", "b");
+        //正在创建的条目不可读，也不能被删除
+        assertNull(mCache.get("k1"));
+        assertFalse(mCache.remove("k1"));
+        first.set(0, "c");
+        first.set(1, "d");
+        first.commit();
+        assertValue(mCache, "k1", "c", "d");
+        assertEquals(4, mCache.size());
+    }
+
+    @Test
+    public void concurrentEditsAndReadsOnDistinctKeys() throws Exception {
+        final int threads = 8;
+        final int keysPerThread = 50;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < keysPerThread; i++) {
+                        String key = "t" + thread + "_" + i;
+                        set(mCache, key, key, "v" + i);
+                        assertValue(mCache, key, key, "v" + i);
+                    }
+                    return null;
+                }
+            });
+        }
+        runConcurrently(tasks);
+        long size = 0;
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < keysPerThread; i++) {
+                String key = "t" + t + "_" + i;
+                assertValue(mCache, key, key, "v" + i);
+                size += key.length() + ("v" + i).length();
+            }
+        }
+        assertEquals(size, mCache.size());
+    }
+
+    @Test
+    public void concurrentEditorsOfOneKeyAreExclusive() throws Exception {
+        final int threads = 8;
+        final int rounds = 100;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int t = 0; t < threads; t++) {
+            final String value = "writer" + t;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < rounds; i++) {
+                        DiskLruCache.Editor editor = mCache.edit("shared");
+                        if (editor != null) {
+                            editor.set(0, value);
+                            editor.set(1, value);
+                            editor.commit();
+                        }
+                        DiskLruCache.Snapshot snapshot = mCache.get("shared");
+                        if (snapshot != null) {
+                            //两个值来自同一次提交
+                            assertEquals(snapshot.getString(0), snapshot.getString(1));
+                            snapshot.close();
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        runConcurrently(tasks);
+        DiskLruCache.Snapshot snapshot = mCache.get("shared");
+        assertNotNull(snapshot);
+        assertEquals(snapshot.getString(0).length() * 2, mCache.size());
+        snapshot.close();
+    }
+
+    @Test
+    public void perOpCommitSurvivesCrash() throws Exception {
+        mCache.close();
+        mCache = open(mCacheDir, DiskLruCache.Durability.PER_OP);
+        set(mCache, "k1", "a", "b");
+        assertTrue(mCache.remove("k1"));
+        set(mCache, "k2", "c", "d");
+        DiskLruCache crashed = open(crashCopy(), DiskLruCache.Durability.PER_OP);
+        try {
+            assertAbsent(crashed, "k1");
+            assertValue(crashed, "k2", "c", "d");
+        } finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void onCloseLosesUnflushedCommitsButNoFiles() throws Exception {
+        mCache.close();
+        mCache = open(mCacheDir, DiskLruCache.Durability.ON_CLOSE);
+        set(mCache, "k1", "a", "b");
+        //DIRTY 已落盘，CLEAN 还在缓冲区：崩溃后条目作为未完成的编辑删除，不留下文件
+        DiskLruCache crashed = open(crashCopy(), DiskLruCache.Durability.ON_CLOSE);
+        try {
+            assertAbsent(crashed, "k1");
+            assertEquals(0, crashed.size());
+        } finally {
+            crashed.close();
+        }
+        mCache.flush();
+        crashed = open(crashCopy(), DiskLruCache.Durability.ON_CLOSE);
+        try {
+            assertValue(crashed, "k1", "a", "b");
+        } finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void dirtyRecordIsOnDiskBeforeEditReturns() throws Exception {
+        mCache.close();
+        mCache = open(mCacheDir, DiskLruCache.Durability.ON_CLOSE);
+        DiskLruCache.Editor editor = mCache.edit("k1");
+        editor.set(0, "a");
+        File copy = crashCopy();
+        assertTrue(new File(copy, "k1.0.tmp").exists());
+        DiskLruCache crashed = open(copy, DiskLruCache.Durability.ON_CLOSE);
+        try {
+            assertFalse(new File(copy, "k1.0.tmp").exists());
+        } finally {
+            crashed.close();
+        }
+        editor.abort();
+    }
+
+    @Test
+    public void periodicFlushesInTheBackground() throws Exception {
+        set(mCache, "k1", "a", "b");
+        //PERIODIC 在记录入队后约 1 秒内落盘，不需要调用 flush
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            DiskLruCache crashed = open(crashCopy(), DiskLruCache.Durability.PERIODIC);
+            try {
+                DiskLruCache.Snapshot snapshot = crashed.get("k1");
+                if (snapshot != null) {
+                    snapshot.close();
+                    return;
+                }
+            } finally {
+                crashed.close();
+            }
+            assertTrue("CLEAN record was never flushed", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void closeFlushesEveryMode() throws Exception {
+        for (DiskLruCache.Durability durability : DiskLruCache.Durability.values()) {
+            mCache.close();
+            mCache = open(mCacheDir, durability);
+            set(mCache, durability.name(), "a", "b");
+            mCache.close();
+            mCache = open(mCacheDir, durability);
+            assertValue(mCache, durability.name(), "a", "b");
+        }
+    }
+
+    @Test
+    public void journalReplayRestoresEntriesAndRemovals() throws Exception {
+        set(mCache, "k1", "a", "bb");
+        set(mCache, "k2", "c", "d");
+        set(mCache, "k1", "e", "ff");
+        assertTrue(mCache.remove("k2"));
+        reopen();
+        assertValue(mCache, "k1", "e", "ff");
+        assertAbsent(mCache, "k2");
+        assertEquals(3, mCache.size());
+        assertTrue(new File(mCacheDir, DiskLruCache.JOURNAL_FILE).exists());
+    }
+
+    @Test
+    public void journalReplayKeepsAccessOrder() throws Exception {
+        set(mCache, "k1", "a", "b");
+        set(mCache, "k2", "a", "b");
+        set(mCache, "k3", "a", "b");
+        assertValue(mCache, "k1", "a", "b");
+        mCache.close();
+        mCache = DiskLruCache.open(mCacheDir, APP_VERSION, VALUE_COUNT, 6);
+        set(mCache, "k4", "a", "b");
+        mCache.flush();
+        //READ 记录只有哈希，重放后 k1 仍比 k2 新
+        assertAbsent(mCache, "k2");
+        assertValue(mCache, "k1", "a", "b");
+        assertValue(mCache, "k3", "a", "b");
+        assertValue(mCache, "k4", "a", "b");
+    }
+
+    @Test
+    public void truncatedTailDropsOnlyTheLastRecord() throws Exception {
+        set(mCache, "k1", "a", "b");
+        set(mCache, "k2", "c", "d");
+        mCache.close();
+        //崩溃时最后一条 CLEAN 记录只写了一部分
+        File journal = new File(mCacheDir, DiskLruCache.JOURNAL_FILE);
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+        mCache = DiskLruCache.open(mCacheDir, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        assertValue(mCache, "k1", "a", "b");
+        assertAbsent(mCache, "k2");
+        //日志已重写，之后追加的记录可以正常重放
+        set(mCache, "k3", "e", "f");
+        reopen();
+        assertValue(mCache, "k1", "a", "b");
+        assertValue(mCache, "k3", "e", "f");
+        assertEquals(4, mCache.size());
+    }
+
+    @Test
+    public void corruptJournalClearsTheCache() throws Exception {
+        set(mCache, "k1", "a", "b");
+        mCache.close();
+        RandomAccessFile file = new RandomAccessFile(new File(mCacheDir, DiskLruCache.JOURNAL_FILE), "rw");
+        try {
+            file.writeInt(0);
+        } finally {
+            file.close();
+        }
+        mCache = DiskLruCache.open(mCacheDir, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        assertAbsent(mCache, "k1");
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void hashCollisionDropsBothKeys() throws Exception {
+        mCache.close();
+        DiskLruCache.deleteContents(mCacheDir);
+        for (String key : new String[]{"a", "b", "c"}) {
+            writeFile(key + ".0", "x");
+            writeFile(key + ".1", "y");
+        }
+        long hash = 42;
+        ByteBuffer journal = ByteBuffer.allocate(1024);
+        journal.putInt(DiskLruCache.BINARY_MAGIC).putInt(DiskLruCache.VERSION_2)
+                .putInt(APP_VERSION).putInt(VALUE_COUNT);
+        putCleanRecord(journal, hash, "a", 1, 1);
+        putCleanRecord(journal, DiskLruCache.hashKey("c".getBytes("UTF-8")), "c", 1, 1);
+        putCleanRecord(journal, hash, "b", 1, 1);
+        //冲突之后同一哈希的记录无法区分，全部忽略
+        journal.put((byte) 4).putLong(hash);
+        putCleanRecord(journal, hash, "a", 1, 1);
+        OutputStream out = new FileOutputStream(new File(mCacheDir, DiskLruCache.JOURNAL_FILE));
+        try {
+            out.write(journal.array(), 0, journal.position());
+        } finally {
+            out.close();
+        }
+        mCache = DiskLruCache.open(mCacheDir, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        assertAbsent(mCache, "a");
+        assertAbsent(mCache, "b");
+        assertValue(mCache, "c", "x", "y");
+        assertEquals(2, mCache.size());
+    }
+
+    @Test
+    public void legacyJournalIsMigrated() throws Exception {
+        mCache.close();
+        DiskLruCache.deleteContents(mCacheDir);
+        writeFile("k1.0", "abc");
+        writeFile("k1.1", "defg");
+        writeFile("k2.0", "x");
+        writeFile("k2.1", "y");
+        writeFile(DiskLruCache.LEGACY_JOURNAL_FILE, DiskLruCache.MAGIC + "\n"
+                + DiskLruCache.VERSION_1 + "\n"
+                + APP_VERSION + "\n"
+                + VALUE_COUNT + "\n"
+                + "\n"
+                + "DIRTY k1\n"
+                + "CLEAN k1 3 4\n"
+                + "DIRTY k2\n"
+                + "CLEAN k2 1 1\n"
+                + "REMOVE k2\n"
+                + "READ k1\n");
+        mCache = DiskLruCache.open(mCacheDir, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        assertValue(mCache, "k1", "abc", "defg");
+        assertNull(mCache.get("k2"));
+        assertFalse(new File(mCacheDir, DiskLruCache.LEGACY_JOURNAL_FILE).exists());
+        assertTrue(new File(mCacheDir, DiskLruCache.JOURNAL_FILE).exists());
+        reopen();
+        assertValue(mCache, "k1", "abc", "defg");
+        assertEquals(7, mCache.size());
+    }
+
+    @Test
+    public void legacyJournalWithOtherValueCountIsCleared() throws Exception {
+        mCache.close();
+        DiskLruCache.deleteContents(mCacheDir);
+        writeFile("k1.0", "abc");
+        writeFile(DiskLruCache.LEGACY_JOURNAL_FILE, DiskLruCache.MAGIC + "\n"
+                + DiskLruCache.VERSION_1 + "\n"
+                + APP_VERSION + "\n"
+                + "1\n"
+                + "\n"
+                + "CLEAN k1 3\n");
+        mCache = DiskLruCache.open(mCacheDir, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        assertAbsent(mCache, "k1");
+        assertFalse(new File(mCacheDir, DiskLruCache.LEGACY_JOURNAL_FILE).exists());
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void compactionDuringConcurrentEditsKeepsEveryCommit() throws Exception {
+        final int threads = 4;
+        final int keysPerThread = 20;
+        final int rounds = 50;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = 0; i < keysPerThread; i++) {
+                            String key = "t" + thread + "_" + i;
+                            set(mCache, key, key, "r" + round);
+                            assertValue(mCache, key, key, "r" + round);
+                        }
+                        //删除后重建的条目在压缩日志和积压记录中都必须是最后的状态
+                        String removed = "t" + thread + "_0";
+                        assertTrue(mCache.remove(removed));
+                        set(mCache, removed, removed, "r" + round);
+                    }
+                    return null;
+                }
+            });
+        }
+        runConcurrently(tasks);
+        long uncompacted = 0;
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < keysPerThread; i++) {
+                int keyLength = ("t" + t + "_" + i).length();
+                int edits = i == 0 ? rounds * 2 : rounds;
+                //DIRTY、CLEAN 和 READ 记录的长度
+                uncompacted += edits * ((11 + keyLength) + (11 + keyLength + 8 + 8 * VALUE_COUNT) + 9);
+            }
+        }
+        reopen();
+        long size = 0;
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < keysPerThread; i++) {
+                String key = "t" + t + "_" + i;
+                assertValue(mCache, key, key, "r" + (rounds - 1));
+                size += key.length() + ("r" + (rounds - 1)).length();
+            }
+        }
+        assertEquals(size, mCache.size());
+        long journalLength = new File(mCacheDir, DiskLruCache.JOURNAL_FILE).length();
+        assertTrue("journal was never compacted: " + journalLength + " of " + uncompacted,
+                journalLength < uncompacted / 2);
+    }
+}
@@ -0,0 +1,188 @@
+package io.github.brijoe;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HostLimiterTest {
+
+    private static final int MAX_PER_HOST = 2;
+
+    private HttpServer mServer;
+    private final AtomicInteger mActiveRequests = new AtomicInteger();
+    private final AtomicInteger mMaxActiveRequests = new AtomicInteger();
+    private final AtomicInteger mOrder = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        //记录同时处理的请求数的慢服务器
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int active = mActiveRequests.incrementAndGet();
+                int max;
+                while (active > (max = mMaxActiveRequests.get())
+                        && !mMaxActiveRequests.compareAndSet(max, active)) {
+                    //重试
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                mActiveRequests.decrementAndGet();
+                byte[] body = "ok".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    private LoadTask newTask(String uri, Priority priority) {
+        LoadTask task = new LoadTask(null, uri, uri, uri, 0, 0, null);
+        task.schedule(priority, mOrder.incrementAndGet());
+        return task;
+    }
+
+    @Test
+    public void capIsPerHost() {
+        HostLimiter limiter = new HostLimiter(MAX_PER_HOST);
+        LoadTask a = newTask("http://a.com/1", Priority.NORMAL);
+        LoadTask b = newTask("http://a.com/2", Priority.NORMAL);
+        LoadTask c = newTask("http://a.com/3", Priority.NORMAL);
+        LoadTask other = newTask("http://b.com/1", Priority.NORMAL);
+        assertTrue(limiter.tryAcquire(a));
+        assertTrue(limiter.tryAcquire(b));
+        assertFalse(limiter.tryAcquire(c));
+        assertTrue(limiter.tryAcquire(other));
+        //已经持有名额的任务再次执行网络阶段不会多占名额
+        assertTrue(limiter.tryAcquire(a));
+        assertSame(c, limiter.release(a));
+        assertTrue(limiter.tryAcquire(c));
+        assertNull(limiter.release(b));
+        assertNull(limiter.release(c));
+        assertNull(limiter.release(other));
+        assertNull(limiter.release(a));
+    }
+
+    @Test
+    public void releaseHandsSlotToBestWaiter() {
+        HostLimiter limiter = new HostLimiter(1);
+        LoadTask holder = newTask("http://a.com/0", Priority.NORMAL);
+        LoadTask prefetch = newTask("http://a.com/1", Priority.PREFETCH);
+        LoadTask cancelled = newTask("http://a.com/2", Priority.IMMEDIATE);
+        LoadTask visible = newTask("http://a.com/3", Priority.NORMAL);
+        assertTrue(limiter.tryAcquire(holder));
+        assertFalse(limiter.tryAcquire(prefetch));
+        assertFalse(limiter.tryAcquire(cancelled));
+        assertFalse(limiter.tryAcquire(visible));
+        cancelled.cancel();
+        //等待期间被取消的任务被跳过，名额交给优先级最高的下一个任务
+        assertSame(visible, limiter.release(holder));
+        assertTrue(cancelled.isCompleted());
+        assertSame(prefetch, limiter.release(visible));
+        assertNull(limiter.release(prefetch));
+        //名额全部归还后主机可以重新取得名额
+        assertTrue(limiter.tryAcquire(newTask("http://a.com/4", Priority.NORMAL)));
+    }
+
+    @Test
+    public void removeCancelsWaitingTask() {
+        HostLimiter limiter = new HostLimiter(1);
+        LoadTask holder = newTask("http://a.com/0", Priority.NORMAL);
+        LoadTask waiting = newTask("http://a.com/1", Priority.NORMAL);
+        assertTrue(limiter.tryAcquire(holder));
+        assertFalse(limiter.tryAcquire(waiting));
+        //只能移出还在等待的任务
+        assertFalse(limiter.remove(holder));
+        assertTrue(limiter.remove(waiting));
+        assertFalse(limiter.remove(waiting));
+        //被移出的任务不会再接手名额
+        assertNull(limiter.release(holder));
+        assertTrue(limiter.tryAcquire(newTask("http://a.com/2", Priority.NORMAL)));
+    }
+
+    @Test
+    public void serverNeverSeesMoreThanCap() throws Exception {
+        final HostLimiter limiter = new HostLimiter(MAX_PER_HOST);
+        final LinkedBlockingQueue<LoadTask> queue = new LinkedBlockingQueue<LoadTask>();
+        final int requests = 20;
+        for (int i = 0; i < requests; i++) {
+            queue.add(newTask(url("/" + i), Priority.NORMAL));
+        }
+        final AtomicInteger completed = new AtomicInteger();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        //与网络线程池一样：取不到名额的任务留在主机队列中，释放名额时交回的任务重新入队
+        ExecutorService workers = Executors.newFixedThreadPool(6);
+        for (int t = 0; t < 6; t++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (completed.get() < requests) {
+                            LoadTask task = queue.poll(50, TimeUnit.MILLISECONDS);
+                            if (task == null || !limiter.tryAcquire(task)) {
+                                continue;
+                            }
+                            try {
+                                HttpURLConnection connection = HttpConnections.open(task.uri);
+                                InputStream in = connection.getInputStream();
+                                HttpConnections.release(connection, in, new byte[1024]);
+                                completed.incrementAndGet();
+                            } finally {
+                                LoadTask next = limiter.release(task);
+                                if (next != null) {
+                                    queue.add(next);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        assertTrue(workers.awaitTermination(30, TimeUnit.SECONDS));
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(requests, completed.get());
+        assertEquals(MAX_PER_HOST, mMaxActiveRequests.get());
+    }
+}
@@ -0,0 +1,118 @@
+package io.github.brijoe;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpConnectionsTest {
+
+    private static final int SMALL_BODY = 16 * 1024;
+
+    private HttpServer mServer;
+    /**
+     * 每个请求的客户端端口，端口相同说明复用了同一个连接
+     */
+    private final List<Integer> mClientPorts = new CopyOnWriteArrayList<Integer>();
+    /**
+     * 客户端断开了没有结束的响应
+     */
+    private final CountDownLatch mDisconnected = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                mClientPorts.add(exchange.getRemoteAddress().getPort());
+                String path = exchange.getRequestURI().getPath();
+                if (path.startsWith("/endless")) {
+                    //分块发送、永远不结束的响应，直到客户端断开
+                    exchange.sendResponseHeaders(200, 0);
+                    OutputStream out = exchange.getResponseBody();
+                    try {
+                        while (true) {
+                            out.write(new byte[8192]);
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        mDisconnected.countDown();
+                    }
+                    return;
+                }
+                int code = path.startsWith("/missing") ? 404 : 200;
+                byte[] body = new byte[SMALL_BODY];
+                exchange.sendResponseHeaders(code, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return HttpConnections.open("http://127.0.0.1:" + mServer.getAddress().getPort() + path);
+    }
+
+    @Test
+    public void unreadBodyIsDrainedAndConnectionReused() throws Exception {
+        HttpURLConnection first = open("/small/1");
+        InputStream in = first.getInputStream();
+        //只读了一部分就结束
+        in.read(new byte[100]);
+        HttpConnections.release(first, in, new byte[1024]);
+        HttpURLConnection second = open("/small/2");
+        HttpConnections.release(second, second.getInputStream(), new byte[1024]);
+        assertEquals(2, mClientPorts.size());
+        assertEquals(mClientPorts.get(0), mClientPorts.get(1));
+    }
+
+    @Test
+    public void errorBodyIsDrainedAndConnectionReused() throws Exception {
+        HttpURLConnection first = open("/missing");
+        assertEquals(404, first.getResponseCode());
+        HttpConnections.release(first, null, new byte[1024]);
+        HttpURLConnection second = open("/small");
+        HttpConnections.release(second, second.getInputStream(), new byte[1024]);
+        assertEquals(mClientPorts.get(0), mClientPorts.get(1));
+    }
+
+    @Test
+    public void largeRemainderDisconnects() throws Exception {
+        HttpURLConnection connection = open("/endless");
+        //读到上限后放弃，不会一直读下去
+        HttpConnections.release(connection, connection.getInputStream(), new byte[1024]);
+        assertTrue(mDisconnected.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void abortDisconnects() throws Exception {
+        HttpURLConnection connection = open("/endless");
+        HttpConnections.abort(connection, connection.getInputStream());
+        assertTrue(mDisconnected.await(5, TimeUnit.SECONDS));
+    }
+}
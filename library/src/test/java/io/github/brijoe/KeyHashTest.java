@@ -0,0 +1,51 @@
+package io.github.brijoe;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+public class KeyHashTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static String hex(KeyHash hash, String input) {
+        byte[] bytes = input.getBytes(UTF_8);
+        //输入缓冲区比数据长，只有前 length 个字节参与计算
+        byte[] padded = new byte[bytes.length + 7];
+        System.arraycopy(bytes, 0, padded, 0, bytes.length);
+        for (int i = bytes.length; i < padded.length; i++) {
+            padded[i] = (byte) 0xff;
+        }
+        byte[] out = new byte[KeyHash.HASH_SIZE];
+        hash.hash(padded, bytes.length, out);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : out) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * MurmurHash3 x64 128 位、种子为0 的参考值，按 h1、h2 大端输出；覆盖不足8字节、超过8字节的尾部和整块的输入
+     */
+    @Test
+    public void murmur3MatchesReferenceVectors() {
+        assertEquals("00000000000000000000000000000000", hex(KeyHash.MURMUR3_128, ""));
+        assertEquals("cbd8a7b341bd9b025b1e906a48ae1d19", hex(KeyHash.MURMUR3_128, "hello"));
+        assertEquals("3c84645edb66cca499f8fac73a1ea105", hex(KeyHash.MURMUR3_128, "123456789"));
+        assertEquals("4be06d94cf4ad1a787c35b5c63a708da", hex(KeyHash.MURMUR3_128, "0123456789abcdef"));
+        assertEquals("7d5029ad39e74c6e2edd6aff2edc4b09", hex(KeyHash.MURMUR3_128, "http://example.com/a.jpg"));
+        assertEquals("e34bbc7bbc071b6c7a433ca9c49a9347",
+                hex(KeyHash.MURMUR3_128, "The quick brown fox jumps over the lazy dog"));
+    }
+
+    @Test
+    public void md5MatchesMessageDigest() {
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", hex(KeyHash.MD5, ""));
+        assertEquals("5d41402abc4b2a76b9719d911017c592", hex(KeyHash.MD5, "hello"));
+        //线程内复用的 MessageDigest 在每次计算后已重置
+        assertEquals("5d41402abc4b2a76b9719d911017c592", hex(KeyHash.MD5, "hello"));
+    }
+}
@@ -0,0 +1,181 @@
+package io.github.brijoe;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TinyLfuCacheTest {
+
+    /**
+     * 与网格中一张图片相当的条目大小，比 1% 的窗口大
+     */
+    private static final int CELL_SIZE = 50;
+    private static final int MAX_SIZE = 1000;
+    /**
+     * 回放轨迹的参数：请求数、热点key 数、热点请求所占比例（%）和缓存条目数
+     */
+    private static final int TRACE_LENGTH = 100000;
+    private static final int TRACE_HOT_KEYS = 50;
+    private static final int TRACE_HOT_PERCENT = 60;
+    private static final int TRACE_CACHE_SIZE = 100;
+
+    private TinyLfuCache<String, String> mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new TinyLfuCache<String, String>(MAX_SIZE) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return CELL_SIZE;
+            }
+        };
+    }
+
+    /**
+     * 用经常访问的条目填满缓存
+     */
+    private void warmUp() {
+        for (int i = 0; i < MAX_SIZE / CELL_SIZE; i++) {
+            mCache.put("hot" + i, "hot" + i);
+            for (int j = 0; j < 3; j++) {
+                mCache.get("hot" + i);
+            }
+        }
+        assertEquals(MAX_SIZE, mCache.size());
+    }
+
+    @Test
+    public void oneHitEntriesDoNotDisplaceFrequentOnes() {
+        warmUp();
+        for (int i = 0; i < 9; i++) {
+            mCache.put("cold" + i, "cold" + i);
+        }
+        //只有最后一个还在窗口中，其余都在准入比较中被拒绝
+        for (int i = 0; i < 8; i++) {
+            assertNull(mCache.peek("cold" + i));
+        }
+        assertNotNull(mCache.peek("cold8"));
+        for (int i = 0; i < MAX_SIZE / CELL_SIZE - 1; i++) {
+            assertNotNull(mCache.peek("hot" + i));
+        }
+    }
+
+    @Test
+    public void admittedBatchSurvivesOnWarmCache() {
+        warmUp();
+        for (int i = 0; i < 9; i++) {
+            mCache.putAdmitted("preload" + i, "preload" + i);
+        }
+        for (int i = 0; i < 9; i++) {
+            assertNotNull("preload" + i + " was evicted", mCache.peek("preload" + i));
+        }
+        assertTrue(mCache.size() <= MAX_SIZE);
+    }
+
+    @Test
+    public void admittedEntryIsNotEvictedByItself() {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(CELL_SIZE) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return CELL_SIZE;
+            }
+        };
+        cache.putAdmitted("a", "a");
+        cache.putAdmitted("b", "b");
+        assertNull(cache.peek("a"));
+        assertEquals("b", cache.peek("b"));
+        assertEquals(CELL_SIZE, cache.size());
+    }
+
+    @Test
+    public void takeRemovesAndCountsAccess() {
+        mCache.put("a", "1");
+        assertEquals("1", mCache.take("a"));
+        assertNull(mCache.peek("a"));
+        assertEquals(0, mCache.size());
+        assertNull(mCache.take("a"));
+        assertEquals(1, mCache.hitCount());
+        assertEquals(1, mCache.missCount());
+    }
+
+    @Test
+    public void removeAndReplaceKeepSizeConsistent() {
+        mCache.put("a", "1");
+        mCache.put("a", "2");
+        assertEquals("2", mCache.peek("a"));
+        assertEquals(CELL_SIZE, mCache.size());
+        assertEquals("2", mCache.remove("a"));
+        assertEquals(0, mCache.size());
+    }
+
+    /**
+     * 合成轨迹：热点请求在 {@link #TRACE_HOT_KEYS} 个key 中均匀分布，其余是只访问一次的key，
+     * 相当于在常看的图片之间快速滑过的列表
+     */
+    private static String[] syntheticTrace() {
+        Random random = new Random(17);
+        String[] trace = new String[TRACE_LENGTH];
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            trace[i] = random.nextInt(100) < TRACE_HOT_PERCENT
+                    ? "hot" + random.nextInt(TRACE_HOT_KEYS) : "scan" + i;
+        }
+        return trace;
+    }
+
+    private static double replayTinyLfu(String[] trace) {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(TRACE_CACHE_SIZE);
+        int hits = 0;
+        for (String key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        assertEquals(hits, cache.hitCount());
+        return (double) hits / trace.length;
+    }
+
+    private static double replayLru(String[] trace) {
+        Map<String, String> cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > TRACE_CACHE_SIZE;
+            }
+        };
+        int hits = 0;
+        for (String key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    @Test
+    public void syntheticTraceHitRateBeatsLru() {
+        String[] trace = syntheticTrace();
+        double tinyLfu = replayTinyLfu(trace);
+        double lru = replayLru(trace);
+        //只访问一次的key 不可能命中，热点请求的比例是任何策略的上限
+        int hotRequests = 0;
+        for (String key : trace) {
+            if (key.startsWith("hot")) {
+                hotRequests++;
+            }
+        }
+        assertTrue(tinyLfu <= (double) hotRequests / trace.length);
+        //在 100000 次请求的轨迹上约为 0.60 对 0.50
+        assertTrue("W-TinyLFU " + tinyLfu + " vs LRU " + lru, tinyLfu > lru + 0.08);
+    }
+}
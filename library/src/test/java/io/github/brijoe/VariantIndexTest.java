@@ -0,0 +1,37 @@
+package io.github.brijoe;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VariantIndexTest {
+
+    @Test
+    public void removeAllReturnsOnlyVariantsOfOneOriginal() {
+        VariantIndex index = new VariantIndex();
+        String a1 = VariantIndex.keyFor("a", 100, 100);
+        String a2 = VariantIndex.keyFor("a", 200, 150);
+        String b1 = VariantIndex.keyFor("b", 100, 100);
+        //打开缓存时登记已有的key，无法解析的key被忽略
+        index.addAll(Arrays.asList(a1, b1, "journal"));
+        index.add(a2);
+        assertEquals(new HashSet<String>(Arrays.asList(a1, a2)), index.removeAll("a"));
+        assertTrue(index.removeAll("a").isEmpty());
+        assertEquals(new HashSet<String>(Arrays.asList(b1)), index.removeAll("b"));
+    }
+
+    @Test
+    public void removedVariantIsForgotten() {
+        VariantIndex index = new VariantIndex();
+        String a1 = VariantIndex.keyFor("a", 100, 100);
+        String a2 = VariantIndex.keyFor("a", 200, 200);
+        index.add(a1);
+        index.add(a2);
+        index.remove(a1);
+        assertEquals(new HashSet<String>(Arrays.asList(a2)), index.removeAll("a"));
+    }
+}
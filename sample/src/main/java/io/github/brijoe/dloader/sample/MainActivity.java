@@ -9,7 +9,6 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AbsListView;
 import android.widget.BaseAdapter;
 import android.widget.GridView;
 import android.widget.ImageView;
@@ -18,9 +17,12 @@ import java.util.ArrayList;
 import java.util.List;
 
 import io.github.brijoe.DLoader;
+import io.github.brijoe.ListPreloader;
+import io.github.brijoe.PauseOnScrollListener;
+import io.github.brijoe.PreloadLevel;
 
 
-public class MainActivity extends Activity implements AbsListView.OnScrollListener {
+public class MainActivity extends Activity {
 
     private static final String TAG = "MainActivity";
 
@@ -28,7 +30,6 @@ public class MainActivity extends Activity implements AbsListView.OnScrollListen
     private GridView mImageGridView;
     private BaseAdapter mImageAdapter;
 
-    private boolean mIsGridViewIdle = true;
     private int mImageWidth = 0;
     private boolean mIsWifi = false;
     private boolean mCanGetBitmapFromNetWork = false;
@@ -81,7 +82,15 @@ public class MainActivity extends Activity implements AbsListView.OnScrollListen
         mImageGridView = (GridView) findViewById(R.id.gridView);
         mImageAdapter = new ImageAdapter(this);
         mImageGridView.setAdapter(mImageAdapter);
-        mImageGridView.setOnScrollListener(this);
+        //沿滚动方向预加载一屏左右的图片
+        ListPreloader preloader = new ListPreloader(DLoader.with(this), new ListPreloader.UriProvider() {
+            @Override
+            public String getUri(int position) {
+                return mCanGetBitmapFromNetWork ? mUrList.get(position) : null;
+            }
+        }, mImageWidth, mImageWidth, 9, PreloadLevel.MEMORY);
+        //滑动时暂停加载，停止后按可见顺序恢复
+        mImageGridView.setOnScrollListener(new PauseOnScrollListener(DLoader.with(this), false, true, preloader));
 
         if (!mIsWifi) {
             AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -141,7 +150,7 @@ public class MainActivity extends Activity implements AbsListView.OnScrollListen
             if (!uri.equals(tag)) {
                 imageView.setImageDrawable(mDefaultBitmapDrawable);
             }
-            if (mIsGridViewIdle && mCanGetBitmapFromNetWork) {
+            if (mCanGetBitmapFromNetWork) {
                 imageView.setTag(uri);
                DLoader.with(MainActivity.this).load(uri,imageView,mImageWidth,mImageWidth);
             }
@@ -153,21 +162,4 @@ public class MainActivity extends Activity implements AbsListView.OnScrollListen
     private static class ViewHolder {
         public ImageView imageView;
     }
-
-    @Override
-    public void onScrollStateChanged(AbsListView view, int scrollState) {
-        if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE) {
-            mIsGridViewIdle = true;
-            mImageAdapter.notifyDataSetChanged();
-        } else {
-            mIsGridViewIdle = false;
-        }
-    }
-
-    @Override
-    public void onScroll(AbsListView view, int firstVisibleItem,
-                         int visibleItemCount, int totalItemCount) {
-        // ignored
-
-    }
 }